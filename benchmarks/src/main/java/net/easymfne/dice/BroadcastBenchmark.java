@@ -0,0 +1,105 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.kyori.adventure.audience.Audience;
+import net.kyori.adventure.text.Component;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Delivering one message the way RollCommand.broadcast does when no chat
+ * channel is used: the message is converted to a component once, the
+ * recipients are collected (from the PlayerGrid, unless the broadcast goes
+ * to every online player) and the component is sent
+ * through a single Audience. The stand-in players are spread over two worlds
+ * and a square of the given size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    @Param({"10", "100", "500"})
+    public int players;
+
+    @Param({"-1", "64"})
+    public int range;
+
+    @Param({"false", "true"})
+    public boolean crossworld;
+
+    @Param({"1000"})
+    public int spread;
+
+    private final LongAdder received = new LongAdder();
+    private final List<Player> online = new ArrayList<>();
+    private final List<Player> recipients = new ArrayList<>();
+    private PlayerGrid grid;
+    private Player sender;
+    private final String message = "\u00a7c[\u00a7fDice\u00a7c] \u00a7fSteve rolled \u00a7e4 \u00a77(1d6)";
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        World[] worlds = {StandIns.world("world"), StandIns.world("world_nether")};
+        for (int i = 0; i < players; ++i) {
+            online.add(StandIns.player("Player" + i, worlds[i % worlds.length],
+                    random.nextInt(spread), 64, random.nextInt(spread), received));
+        }
+        sender = online.get(0);
+        grid = new PlayerGrid(null);
+        grid.reset(range, crossworld, online);
+    }
+
+    @Benchmark
+    public long broadcast() {
+        Component component = RollFormatter.toComponent(message);
+        Collection<? extends Player> targets = online;
+        if (range >= 0) {
+            recipients.clear();
+            grid.collectNearby(sender, range, crossworld, recipients);
+            targets = recipients;
+        } else if (!crossworld) {
+            recipients.clear();
+            grid.collectWorld(sender.getWorld().getUID(), recipients);
+            targets = recipients;
+        }
+        Audience.audience(targets).sendMessage(component);
+        return received.sum();
+    }
+
+}
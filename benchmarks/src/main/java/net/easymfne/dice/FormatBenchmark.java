@@ -0,0 +1,105 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rendering a roll into the default message templates, with natColors on and
+ * off: once for an in-game player (the CommandSender path, which also strips
+ * the display name) and once by name (the Discord path), plus the colored
+ * result list and total on their own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatBenchmark {
+
+    @Param({"true", "false"})
+    public boolean natColors;
+
+    @Param({"1d20", "6d6+2"})
+    public String expression;
+
+    private Config config;
+    private MessageTemplate template;
+    private Player player;
+    private DiceRoll roll;
+    private final StringBuilder out = new StringBuilder(256);
+
+    @Setup
+    public void setup() {
+        YamlConfiguration yaml = new YamlConfiguration();
+        yaml.set("natColors.enable", natColors);
+        yaml.set("natColors.normal", "&e");
+        yaml.set("natColors.fail", "&c");
+        yaml.set("natColors.crit", "&a");
+        config = new Config(yaml, false);
+        roll = new DiceParser(1, 6, 16).parse(expression).roll(new Random(7));
+        template = MessageTemplate.compile(roll.getCount() > 1
+                ? "&c[&fDice&c] &f{PLAYER} rolled {COUNT}d{SIDES} and got &a{TOTAL} &7({RESULT}&7)"
+                : "&c[&fDice&c] &f{PLAYER} rolled {RESULT} &7({COUNT}d{SIDES})");
+        player = StandIns.player("Steve_01", StandIns.world("world"), 0, 64, 0, new LongAdder());
+    }
+
+    @Benchmark
+    public String formatForPlayer() {
+        return RollFormatter.render(config, template, player, player.getName(), roll);
+    }
+
+    @Benchmark
+    public String formatForName() {
+        return RollFormatter.render(config, template, null, "Steve_01", roll);
+    }
+
+    @Benchmark
+    public MessageTemplate.Rendered formatForDiscord() {
+        return RollFormatter.renderBoth(config, template, null, "Steve_01", roll);
+    }
+
+    @Benchmark
+    public int appendResults() {
+        out.setLength(0);
+        RollFormatter.appendResults(config, out, null, roll);
+        return out.length();
+    }
+
+    @Benchmark
+    public int appendResultTotal() {
+        out.setLength(0);
+        RollFormatter.appendResultTotal(config, out, null, roll);
+        return out.length();
+    }
+
+}
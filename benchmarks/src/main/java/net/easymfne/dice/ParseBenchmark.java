@@ -0,0 +1,63 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing dice notation, both through the expression cache used by every roll
+ * and straight through the parser, as a cache miss would.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+    @Param({"d20", "3", "4d6kh3+2", "2d10!r1+1d4-1"})
+    public String expression;
+
+    private DiceParser parser;
+
+    @Setup
+    public void setup() {
+        parser = new DiceParser(1, 6, 256);
+    }
+
+    @Benchmark
+    public DiceExpression cached() {
+        return parser.parse(expression);
+    }
+
+    @Benchmark
+    public DiceExpression uncached() {
+        return parser.compile(expression);
+    }
+
+}
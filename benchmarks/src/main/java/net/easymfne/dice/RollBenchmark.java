@@ -0,0 +1,68 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rolling a compiled expression into its DiceRoll, for each random source,
+ * and a bulk roll of a large pool for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RollBenchmark {
+
+    @Param({"1d20", "6d6", "4d6kh3+2", "2d10!r1+1d4-1"})
+    public String expression;
+
+    @Param({"threadlocal", "splittable", "seeded"})
+    public String random;
+
+    private DiceExpression compiled;
+    private RandomSource source;
+
+    @Setup
+    public void setup() {
+        compiled = new DiceParser(1, 6, 16).parse(expression);
+        source = RandomSource.create(random, 42L);
+    }
+
+    @Benchmark
+    public DiceRoll roll() {
+        return compiled.roll(source.current());
+    }
+
+    @Benchmark
+    public BulkRoll bulk100k() {
+        return BulkRoll.roll(source.current(), 100000, 6, 0);
+    }
+
+}
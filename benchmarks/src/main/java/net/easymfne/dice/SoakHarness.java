@@ -0,0 +1,437 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import br.com.devpaulo.legendchat.channels.types.Channel;
+import github.scarsz.discordsrv.api.events.DiscordGuildMessagePreProcessEvent;
+import github.scarsz.discordsrv.dependencies.jda.api.JDA;
+import github.scarsz.discordsrv.dependencies.jda.api.entities.Guild;
+import github.scarsz.discordsrv.dependencies.jda.api.entities.TextChannel;
+import github.scarsz.discordsrv.dependencies.jda.api.entities.User;
+import github.scarsz.discordsrv.dependencies.jda.api.events.message.guild.GuildMessageReceivedEvent;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Constructor;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.command.PluginCommand;
+import org.bukkit.entity.Player;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.java.JavaPluginLoader;
+
+/**
+ * A headless soak test of the whole plugin. Dice is enabled against a
+ * stand-in server (see SoakServer) and driven in real time, one 50ms tick at
+ * a time: stand-in players run "/roll" through the real command, some of
+ * them walk about so that the PlayerGrid keeps moving, and a stand-in Discord
+ * gateway feeds messages to the real DiscordChatListener, whose rolls are
+ * queued and delivered in one batch per tick by a drain task on the main
+ * thread, as on a real server. With legendchat=true, LegendChat is reported
+ * as installed and in-game rolls go to stand-in chat channels through the
+ * ChannelIndex; Discord rolls are then skipped, as finding a Discord
+ * channel's linked game channel needs DiscordSRV itself.
+ *
+ * After a warmup the harness reports the latency of each in-game roll, the
+ * bytes each one allocates on the main thread, and how much of each tick's
+ * 50ms the plugin used, followed by the plugin's own metrics. Everything runs
+ * in-process with no network access. Options are given as name=value:
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar net.easymfne.dice.SoakHarness players=500 rate=50
+ * </pre>
+ */
+public final class SoakHarness {
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    /** In-game rolls, picked at random; several arguments make a batch. */
+    private static final String[][] GAME_ROLLS = {
+        {"1d20"}, {"2d6"}, {"3d6"}, {"4d6kh3"}, {"1d100"}, {"2d20kh1"},
+        {"1d20+5"}, {"2d8+1d6"}, {"atk:1d20+5", "dmg:2d6+3"},
+    };
+
+    /** Discord messages, picked at random. */
+    private static final String[] DISCORD_ROLLS = {
+        "!roll 1d20", "/roll 2d6", "!roll 4d6kh3", "!roll 1d100",
+    };
+
+    /** Options and their defaults, in the order they are listed. */
+    private static final String[][] OPTIONS = {
+        {"players", "100", "stand-in players online"},
+        {"worlds", "2", "worlds the players are spread over"},
+        {"spread", "1000", "side of the square, in blocks, the players stand in"},
+        {"range", "64", "broadcast.range; -1 broadcasts to every player"},
+        {"crossworld", "false", "broadcast.crossworld"},
+        {"legendchat", "false", "deliver in-game rolls through stand-in LegendChat channels"},
+        {"rate", "20", "in-game rolls per second"},
+        {"discord", "2", "Discord rolls per second"},
+        {"moving", "0.2", "fraction of players that move each tick"},
+        {"warmup", "10", "seconds before measuring starts"},
+        {"duration", "60", "seconds measured"},
+        {"seed", "1", "seed for placing players and picking rolls"},
+    };
+
+    /**
+     * The plugin, with access to setEnabled so that it can be enabled and
+     * disabled the way the server would.
+     */
+    private static final class SoakDice extends Dice {
+
+        private ChannelIndex.Source channels = ChannelIndex.LEGENDCHAT;
+
+        SoakDice(JavaPluginLoader loader, PluginDescriptionFile description, File dataFolder) {
+            super(loader, description, dataFolder, new File(dataFolder, "Dice.jar"));
+        }
+
+        @Override
+        ChannelIndex.Source getChannelSource() {
+            return channels;
+        }
+
+        void enable(boolean enabled) {
+            setEnabled(enabled);
+        }
+    }
+
+    private final Map<String, String> options;
+    private final Random random;
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final long mainThreadId = Thread.currentThread().getId();
+
+    private final RollMetrics.Histogram rollLatency = new RollMetrics.Histogram();
+    private final RollMetrics.Histogram rollBytes = new RollMetrics.Histogram();
+    private final RollMetrics.Histogram tickWork = new RollMetrics.Histogram();
+    private final RollMetrics.Histogram moveLatency = new RollMetrics.Histogram();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder discordSent = new LongAdder();
+    private long tickBytes;
+    private int overBudget;
+
+    private SoakHarness(Map<String, String> options) {
+        this.options = options;
+        this.random = new Random(getLong("seed"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String[] option : OPTIONS) {
+            options.put(option[0], option[1]);
+        }
+        for (String arg : args) {
+            int i = arg.indexOf('=');
+            if (i < 0 || !options.containsKey(arg.substring(0, i))) {
+                usage();
+                return;
+            }
+            options.put(arg.substring(0, i), arg.substring(i + 1));
+        }
+        new SoakHarness(options).run();
+    }
+
+    private static void usage() {
+        System.out.println("Usage: SoakHarness [name=value ...]");
+        for (String[] option : OPTIONS) {
+            System.out.println(String.format(Locale.ROOT, "  %-10s %-6s %s", option[0], option[1], option[2]));
+        }
+    }
+
+    private void run() throws Exception {
+        Logger logger = Logger.getLogger("Soak");
+        logger.setLevel(Level.WARNING);
+        SoakServer stand = new SoakServer(logger);
+        Bukkit.setServer(stand.getServer());
+
+        Path dataFolder = Files.createTempDirectory("dice-soak");
+        try {
+            Files.write(dataFolder.resolve("config.yml"), config().getBytes(StandardCharsets.UTF_8));
+            SoakDice plugin = load(stand, dataFolder.toFile());
+            List<Location> locations = spawn(stand);
+            if (Boolean.parseBoolean(options.get("legendchat"))) {
+                stand.install("LegendChat");
+                plugin.channels = channels(stand.getOnlinePlayers());
+                options.put("discord", "0");
+            }
+            plugin.enable(true);
+
+            DiscordChatListener discord = new DiscordChatListener(plugin);
+            ExecutorService gateway = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "Soak-Discord");
+                t.setDaemon(true);
+                return t;
+            });
+            try {
+                PluginCommand command = plugin.getCommand("roll");
+                long warmupTicks = getLong("warmup") * 20;
+                long ticks = warmupTicks + getLong("duration") * 20;
+                System.out.println(String.format(Locale.ROOT, "Soaking for %ds after a %ds warmup: %s",
+                        getLong("duration"), getLong("warmup"), options));
+                drive(stand, plugin, command, discord, gateway, locations, warmupTicks, ticks);
+                report(stand, plugin, discord);
+            } finally {
+                gateway.shutdownNow();
+                discord.close();
+                plugin.enable(false);
+                stand.shutdown();
+            }
+        } finally {
+            delete(dataFolder);
+        }
+    }
+
+    /**
+     * @return The configuration the plugin is soaked with: the defaults,
+     *         without rate limits, and with the broadcast options given
+     */
+    private String config() {
+        return "maximum:\n"
+                + "  sides: 100\n"
+                + "  count: 10\n"
+                + "broadcast:\n"
+                + "  range: " + getLong("range") + "\n"
+                + "  crossworld: " + Boolean.parseBoolean(options.get("crossworld")) + "\n"
+                + "cooldown:\n"
+                + "  tiers:\n"
+                + "    default:\n"
+                + "      burst: 1\n"
+                + "      refill: 0\n";
+    }
+
+    /**
+     * Construct the plugin and its "/roll" command, as the plugin loader
+     * would from plugin.yml.
+     */
+    private static SoakDice load(SoakServer stand, File dataFolder) throws Exception {
+        PluginDescriptionFile description;
+        try (InputStream in = Dice.class.getResourceAsStream("/plugin.yml")) {
+            description = new PluginDescriptionFile(in);
+        }
+        @SuppressWarnings("deprecation")
+        JavaPluginLoader loader = new JavaPluginLoader(stand.getServer());
+        SoakDice plugin = new SoakDice(loader, description, dataFolder);
+        Constructor<PluginCommand> constructor =
+                PluginCommand.class.getDeclaredConstructor(String.class, Plugin.class);
+        constructor.setAccessible(true);
+        stand.setCommand(constructor.newInstance("roll", plugin));
+        return plugin;
+    }
+
+    /**
+     * Put the players online, spread at random over the worlds and the
+     * square.
+     *
+     * @return Each player's location, which the harness moves
+     */
+    private List<Location> spawn(SoakServer stand) {
+        int spread = (int) Math.max(1, getLong("spread"));
+        World[] worlds = new World[(int) Math.max(1, getLong("worlds"))];
+        for (int i = 0; i < worlds.length; ++i) {
+            worlds[i] = StandIns.world("world" + i);
+            stand.addWorld(worlds[i]);
+        }
+        List<Location> locations = new ArrayList<>();
+        for (int i = 0; i < getLong("players"); ++i) {
+            Location location = new Location(worlds[i % worlds.length],
+                    random.nextInt(spread), 64, random.nextInt(spread));
+            locations.add(location);
+            stand.addPlayer(StandIns.player("Player" + i, location, received));
+        }
+        return locations;
+    }
+
+    /**
+     * Two stand-in LegendChat channels, each read by every player; a player
+     * talks in one or the other depending on their name.
+     */
+    private static ChannelIndex.Source channels(final Collection<Player> online) {
+        final List<Channel> channels = Arrays.asList(
+                StandIns.legendChannel("Global", "gold", online),
+                StandIns.legendChannel("Local", "yellow", online));
+        return new ChannelIndex.Source() {
+            @Override
+            public Collection<Channel> getChannels() {
+                return channels;
+            }
+
+            @Override
+            public Channel getFocusedChannel(Player player) {
+                return channels.get(Math.floorMod(player.getName().hashCode(), channels.size()));
+            }
+        };
+    }
+
+    /**
+     * Run the tick loop in real time.
+     */
+    private void drive(SoakServer stand, Dice plugin, PluginCommand command,
+            DiscordChatListener discord, ExecutorService gateway, List<Location> locations,
+            long warmupTicks, long ticks) {
+        List<Player> online = stand.getOnlinePlayers();
+        double rate = getDouble("rate") / 20, discordRate = getDouble("discord") / 20;
+        double moving = getDouble("moving") * online.size();
+        double rolls = 0, messages = 0, moves = 0;
+        JDA jda = StandIns.jda();
+        Guild guild = StandIns.discordGuild();
+        TextChannel channel = StandIns.discordChannel(1L, guild, discordSent);
+        long next = System.nanoTime();
+
+        for (long tick = 0; tick < ticks; ++tick) {
+            boolean measuring = tick >= warmupTicks;
+            long bytes = allocated();
+            long start = System.nanoTime();
+
+            for (rolls += rate; rolls >= 1 && !online.isEmpty(); --rolls) {
+                Player player = online.get(random.nextInt(online.size()));
+                String[] args = GAME_ROLLS[random.nextInt(GAME_ROLLS.length)];
+                long rollBytesStart = allocated();
+                long rollStart = System.nanoTime();
+                command.execute(player, "roll", args);
+                if (measuring) {
+                    rollLatency.record(System.nanoTime() - rollStart);
+                    rollBytes.record(allocated() - rollBytesStart);
+                }
+            }
+
+            for (moves += moving; moves >= 1 && !online.isEmpty(); --moves) {
+                int i = random.nextInt(online.size());
+                long moveStart = System.nanoTime();
+                move(plugin, online.get(i), locations.get(i));
+                if (measuring) {
+                    moveLatency.record(System.nanoTime() - moveStart);
+                }
+            }
+
+            stand.runMainTasks();
+
+            if (measuring) {
+                long work = System.nanoTime() - start;
+                tickWork.record(work);
+                tickBytes += allocated() - bytes;
+                if (work > TICK_NANOS) {
+                    ++overBudget;
+                }
+            }
+
+            for (messages += discordRate; messages >= 1; --messages) {
+                final long id = random.nextLong() & Long.MAX_VALUE;
+                int user = random.nextInt(1000);
+                final User author = StandIns.discordUser(user, "DiscordUser" + user);
+                final String content = DISCORD_ROLLS[random.nextInt(DISCORD_ROLLS.length)];
+                gateway.execute(() -> discord.onDiscordGuildMessagePreProcessEvent(
+                        new DiscordGuildMessagePreProcessEvent(new GuildMessageReceivedEvent(jda, id,
+                                StandIns.discordMessage(id, content, author, channel)))));
+            }
+
+            next += TICK_NANOS;
+            long sleep;
+            while ((sleep = next - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(sleep);
+            }
+        }
+    }
+
+    /**
+     * Walk a player a few blocks and tell the PlayerGrid, as a
+     * PlayerMoveEvent from the server would.
+     */
+    private void move(Dice plugin, Player player, Location location) {
+        Location from = location.clone();
+        int spread = (int) Math.max(1, getLong("spread"));
+        location.setX(Math.floorMod((int) location.getX() + random.nextInt(9) - 4, spread));
+        location.setZ(Math.floorMod((int) location.getZ() + random.nextInt(9) - 4, spread));
+        plugin.getPlayerGrid().onPlayerMove(new PlayerMoveEvent(player, from, location.clone()));
+    }
+
+    /**
+     * @return Bytes allocated so far by the main thread
+     */
+    private long allocated() {
+        return threads.getThreadAllocatedBytes(mainThreadId);
+    }
+
+    private void report(SoakServer stand, Dice plugin, DiscordChatListener discord) {
+        double seconds = getDouble("duration");
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT,
+                "In-game rolls: %d (%.1f/s); p50 %.1fus, p99 %.1fus, p99.9 %.1fus, max %.1fus",
+                rollLatency.getCount(), rollLatency.getCount() / seconds,
+                rollLatency.getQuantile(0.5) / 1000.0, rollLatency.getQuantile(0.99) / 1000.0,
+                rollLatency.getQuantile(0.999) / 1000.0, rollLatency.getMax() / 1000.0));
+        System.out.println(String.format(Locale.ROOT,
+                "Allocated per roll: mean %.0f B, p99 %d B",
+                rollBytes.getMean(), rollBytes.getQuantile(0.99)));
+        System.out.println(String.format(Locale.ROOT,
+                "Moves: %d; p50 %.1fus, p99 %.1fus",
+                moveLatency.getCount(), moveLatency.getQuantile(0.5) / 1000.0,
+                moveLatency.getQuantile(0.99) / 1000.0));
+        System.out.println(String.format(Locale.ROOT,
+                "Tick time used: mean %.3fms (%.2f%% of 50ms), p99 %.3fms, max %.3fms; %d ticks over budget",
+                tickWork.getMean() / 1e6, tickWork.getMean() / TICK_NANOS * 100,
+                tickWork.getQuantile(0.99) / 1e6, tickWork.getMax() / 1e6, overBudget));
+        System.out.println(String.format(Locale.ROOT,
+                "Allocated per tick on the main thread: mean %.0f B",
+                tickWork.getCount() == 0 ? 0.0 : (double) tickBytes / tickWork.getCount()));
+        System.out.println(String.format(Locale.ROOT,
+                "Messages delivered: %d to players, %d to Discord; %d events called",
+                received.sum(), discordSent.sum(), stand.getEvents()));
+        System.out.println();
+        System.out.println("Plugin metrics, including the warmup:");
+        for (String line : plugin.getMetrics().summarize(discord.getOutbox(), plugin.getJournal())) {
+            System.out.println("  " + ChatColor.stripColor(line));
+        }
+    }
+
+    private long getLong(String name) {
+        return Long.parseLong(options.get(name));
+    }
+
+    private double getDouble(String name) {
+        return Double.parseDouble(options.get(name));
+    }
+
+    private static void delete(Path folder) throws IOException {
+        try (Stream<Path> paths = Files.walk(folder)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+}
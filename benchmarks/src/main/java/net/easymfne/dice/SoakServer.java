@@ -0,0 +1,274 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import net.kyori.adventure.text.Component;
+
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.command.PluginCommand;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * A stand-in Server for the soak harness. The thread that creates it plays
+ * the main thread: tasks scheduled with runTask are queued until the harness
+ * runs them in its tick loop, while asynchronous and timer tasks run on a
+ * small pool, with one tick taken as 50 milliseconds. Other plugins are only
+ * present as names (see install), events are counted rather than
+ * dispatched, and broadcasts go to the stand-in players.
+ */
+final class SoakServer {
+
+    private static final long TICK_MILLIS = 50L;
+
+    private final Thread mainThread = Thread.currentThread();
+    private final Logger logger;
+    private final List<Player> online = new ArrayList<>();
+    private final List<Player> onlineView = Collections.unmodifiableList(online);
+    private final Map<UUID, Player> byId = new HashMap<>();
+    private final List<World> worlds = new ArrayList<>();
+    private final Queue<Runnable> mainTasks = new ConcurrentLinkedQueue<>();
+    private final Set<String> installed = ConcurrentHashMap.newKeySet();
+    private final ScheduledThreadPoolExecutor async;
+    private final LongAdder events = new LongAdder();
+    private final Server server;
+    private volatile PluginCommand command;
+
+    /**
+     * @param logger Logger handed to the plugin as the server's logger
+     */
+    SoakServer(Logger logger) {
+        this.logger = logger;
+        final AtomicInteger threadId = new AtomicInteger();
+        this.async = new ScheduledThreadPoolExecutor(2, r -> {
+            Thread t = new Thread(r, "Soak-Async-" + threadId.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        final BukkitScheduler scheduler = StandIns.proxy(BukkitScheduler.class,
+                (self, method, args) -> schedule(method.getName(), args));
+        final PluginManager plugins = StandIns.proxy(PluginManager.class, (self, method, args) -> {
+            switch (method.getName()) {
+                case "getPlugin":
+                    return installed.contains(args[0]) ? plugin((String) args[0]) : null;
+                case "callEvent":
+                    events.increment();
+                    return null;
+                case "registerEvents":
+                    return null;
+                default:
+                    return StandIns.standard(self, method.getName(), args, "PluginManager");
+            }
+        });
+        this.server = StandIns.proxy(Server.class, (self, method, args) -> {
+            switch (method.getName()) {
+                case "getOnlinePlayers":
+                    return onlineView;
+                case "getPlayer":
+                    return args[0] instanceof UUID ? byId.get(args[0]) : null;
+                case "getWorlds":
+                    return Collections.unmodifiableList(worlds);
+                case "getPluginManager":
+                    return plugins;
+                case "getScheduler":
+                    return scheduler;
+                case "getLogger":
+                    return logger;
+                case "getConsoleSender":
+                case "getOfflinePlayerIfCached":
+                    return null;
+                case "getPluginCommand":
+                    PluginCommand roll = command;
+                    return roll != null && ((String) args[0]).endsWith(roll.getName()) ? roll : null;
+                case "broadcast":
+                case "broadcastMessage":
+                    if (args.length != 1) {
+                        return 0;
+                    }
+                    for (Player player : online) {
+                        if (args[0] instanceof String) {
+                            player.sendMessage((String) args[0]);
+                        } else {
+                            player.sendMessage((Component) args[0]);
+                        }
+                    }
+                    return online.size();
+                case "isPrimaryThread":
+                    return Thread.currentThread() == mainThread;
+                case "getName":
+                    return "Soak";
+                case "getVersion":
+                case "getBukkitVersion":
+                case "getMinecraftVersion":
+                    return "1.21.4-R0.1-SNAPSHOT";
+                default:
+                    return StandIns.standard(self, method.getName(), args, "SoakServer");
+            }
+        });
+    }
+
+    /**
+     * @return The stand-in Server
+     */
+    Server getServer() {
+        return server;
+    }
+
+    /**
+     * @param command The plugin's "/roll" command, once it exists
+     */
+    void setCommand(PluginCommand command) {
+        this.command = command;
+    }
+
+    /**
+     * Make the plugin manager report a plugin as installed. The plugin
+     * itself does nothing; Dice only checks that it is there.
+     *
+     * @param name The plugin name
+     */
+    void install(String name) {
+        installed.add(name);
+    }
+
+    private static Plugin plugin(String name) {
+        return StandIns.proxy(Plugin.class, (self, method, args) ->
+                method.getName().equals("getName") ? name : StandIns.standard(self, method.getName(), args, name));
+    }
+
+    /**
+     * @param world A world for the players to stand in
+     */
+    void addWorld(World world) {
+        worlds.add(world);
+    }
+
+    /**
+     * @param player A player to put online
+     */
+    void addPlayer(Player player) {
+        online.add(player);
+        byId.put(player.getUniqueId(), player);
+    }
+
+    /**
+     * @return The online players
+     */
+    List<Player> getOnlinePlayers() {
+        return onlineView;
+    }
+
+    /**
+     * @return The number of events the plugin has called
+     */
+    long getEvents() {
+        return events.sum();
+    }
+
+    /**
+     * Run every task queued for the main thread, including any queued while
+     * running them. Must be called from the main thread.
+     */
+    void runMainTasks() {
+        Runnable task;
+        while ((task = mainTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Stop the asynchronous pool.
+     */
+    void shutdown() {
+        async.shutdownNow();
+    }
+
+    /**
+     * The BukkitScheduler methods the plugin uses. Delays and periods are
+     * converted from ticks; repeating main-thread tasks are queued each time
+     * they come due.
+     */
+    private Object schedule(String method, Object[] args) {
+        if (args == null || args.length < 2 || !(args[1] instanceof Runnable)) {
+            return null;
+        }
+        final Runnable task = (Runnable) args[1];
+        long delay = args.length > 2 ? (Long) args[2] * TICK_MILLIS : 0L;
+        long period = args.length > 3 ? (Long) args[3] * TICK_MILLIS : 0L;
+        Future<?> future;
+        switch (method) {
+            case "runTask":
+                mainTasks.add(task);
+                future = null;
+                break;
+            case "runTaskLater":
+                future = async.schedule(() -> mainTasks.add(task), delay, TimeUnit.MILLISECONDS);
+                break;
+            case "runTaskTimer":
+                future = async.scheduleAtFixedRate(() -> mainTasks.add(task),
+                        delay, Math.max(1, period), TimeUnit.MILLISECONDS);
+                break;
+            case "runTaskAsynchronously":
+                future = async.submit(task);
+                break;
+            case "runTaskLaterAsynchronously":
+                future = async.schedule(task, delay, TimeUnit.MILLISECONDS);
+                break;
+            case "runTaskTimerAsynchronously":
+                future = async.scheduleAtFixedRate(task, delay, Math.max(1, period), TimeUnit.MILLISECONDS);
+                break;
+            default:
+                return null;
+        }
+        return task(future);
+    }
+
+    private static BukkitTask task(final Future<?> future) {
+        return StandIns.proxy(BukkitTask.class, (self, method, args) -> {
+            switch (method.getName()) {
+                case "cancel":
+                    if (future != null) {
+                        future.cancel(false);
+                    }
+                    return null;
+                case "isCancelled":
+                    return future != null && future.isCancelled();
+                default:
+                    return StandIns.standard(self, method.getName(), args, "BukkitTask");
+            }
+        });
+    }
+
+}
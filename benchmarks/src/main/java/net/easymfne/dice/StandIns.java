@@ -0,0 +1,319 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import br.com.devpaulo.legendchat.channels.types.Channel;
+import github.scarsz.discordsrv.dependencies.jda.api.JDA;
+import github.scarsz.discordsrv.dependencies.jda.api.entities.Guild;
+import github.scarsz.discordsrv.dependencies.jda.api.entities.Member;
+import github.scarsz.discordsrv.dependencies.jda.api.entities.Message;
+import github.scarsz.discordsrv.dependencies.jda.api.entities.TextChannel;
+import github.scarsz.discordsrv.dependencies.jda.api.entities.User;
+import github.scarsz.discordsrv.dependencies.jda.api.requests.restaction.MessageAction;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+/**
+ * Minimal in-memory stand-ins for the Bukkit and DiscordSRV types the roll
+ * path touches, built as dynamic proxies so that they keep working as the API
+ * grows. Any method not handled here returns an empty collection, another
+ * stand-in for interface types, or null, zero or false.
+ */
+final class StandIns {
+
+    /** Returned by handlers for methods they leave to the default answer. */
+    private static final Object DEFAULT = new Object();
+
+    private StandIns() {
+    }
+
+    /**
+     * @param name The world name
+     * @return A world with a fixed name and a random UID
+     */
+    static World world(final String name) {
+        final UUID uid = UUID.randomUUID();
+        return proxy(World.class, (self, method, args) -> {
+            switch (method.getName()) {
+                case "getName":
+                    return name;
+                case "getUID":
+                    return uid;
+                default:
+                    return standard(self, method.getName(), args, name);
+            }
+        });
+    }
+
+    /**
+     * @param name The player name, also used as display name
+     * @param world The world the player stands in
+     * @param x Block X coordinate
+     * @param y Block Y coordinate
+     * @param z Block Z coordinate
+     * @param received Counts every message sent to the player
+     * @return A player that accepts messages and has every permission
+     */
+    static Player player(final String name, final World world, double x, double y, double z,
+            final LongAdder received) {
+        return player(name, new Location(world, x, y, z), received);
+    }
+
+    /**
+     * @param name The player name, also used as display name
+     * @param location Where the player stands; the caller may move it
+     * @param received Counts every message sent to the player
+     * @return A player that accepts messages and has every permission
+     */
+    static Player player(final String name, final Location location, final LongAdder received) {
+        final UUID uid = UUID.randomUUID();
+        return proxy(Player.class, (self, method, args) -> {
+            switch (method.getName()) {
+                case "getName":
+                case "getDisplayName":
+                    return name;
+                case "getUniqueId":
+                    return uid;
+                case "getWorld":
+                    return location.getWorld();
+                case "getLocation":
+                case "getEyeLocation":
+                    return location;
+                case "isOnline":
+                case "hasPermission":
+                    return true;
+                case "sendMessage":
+                    received.increment();
+                    return null;
+                default:
+                    return standard(self, method.getName(), args, name);
+            }
+        });
+    }
+
+    /**
+     * @param id The user's snowflake
+     * @param name The user's name, also used as display name
+     * @return A Discord user
+     */
+    static User discordUser(final long id, final String name) {
+        return proxy(User.class, (self, method, args) -> {
+            switch (method.getName()) {
+                case "getIdLong":
+                    return id;
+                case "getId":
+                    return Long.toString(id);
+                case "getName":
+                    return name;
+                default:
+                    return standard(self, method.getName(), args, name);
+            }
+        });
+    }
+
+    /**
+     * @param id The channel's snowflake
+     * @param guild The guild the channel belongs to
+     * @param sent Counts every message queued to the channel
+     * @return A guild text channel in the given guild
+     */
+    static TextChannel discordChannel(final long id, final Guild guild, final LongAdder sent) {
+        final String name = "dice-" + id;
+        return proxy(TextChannel.class, (self, method, args) -> {
+            switch (method.getName()) {
+                case "getIdLong":
+                    return id;
+                case "getId":
+                    return Long.toString(id);
+                case "getName":
+                    return name;
+                case "getGuild":
+                    return guild;
+                case "sendMessage":
+                    return proxy(MessageAction.class, (action, m, a) -> {
+                        if (m.getName().equals("queue")) {
+                            sent.increment();
+                            return null;
+                        }
+                        return standard(action, m.getName(), a, name);
+                    });
+                default:
+                    return standard(self, method.getName(), args, name);
+            }
+        });
+    }
+
+    /**
+     * @return A guild in which every user is a member without a nickname
+     */
+    static Guild discordGuild() {
+        final Member member = proxy(Member.class, (self, method, args) ->
+                method.getName().equals("getNickname") ? null : standard(self, method.getName(), args, "member"));
+        return proxy(Guild.class, (self, method, args) ->
+                method.getName().equals("getMember") ? member : standard(self, method.getName(), args, "guild"));
+    }
+
+    /**
+     * @param id The message's snowflake
+     * @param content The raw message text
+     * @param author Who wrote it
+     * @param channel Where it was written
+     * @return A guild message whose reactions are accepted and dropped
+     */
+    static Message discordMessage(final long id, final String content, final User author,
+            final TextChannel channel) {
+        final Member member = channel.getGuild().getMember(author);
+        return proxy(Message.class, (self, method, args) -> {
+            switch (method.getName()) {
+                case "getIdLong":
+                    return id;
+                case "getId":
+                    return Long.toString(id);
+                case "getContentRaw":
+                case "getContentDisplay":
+                    return content;
+                case "getAuthor":
+                    return author;
+                case "getMember":
+                    return member;
+                case "getTextChannel":
+                case "getChannel":
+                    return channel;
+                case "getGuild":
+                    return channel.getGuild();
+                case "isWebhookMessage":
+                    return false;
+                default:
+                    return standard(self, method.getName(), args, content);
+            }
+        });
+    }
+
+    /**
+     * @param name The channel name
+     * @param color The channel's LegendChat color name
+     * @param members The players who read the channel
+     * @return A LegendChat channel that passes every message on to its members
+     */
+    static Channel legendChannel(final String name, final String color,
+            final Collection<? extends Player> members) {
+        return proxy(Channel.class, (self, method, args) -> {
+            switch (method.getName()) {
+                case "getName":
+                case "getNickname":
+                    return name;
+                case "getStringColor":
+                    return color;
+                case "sendMessage":
+                    String message = (String) args[args.length == 1 ? 0 : 1];
+                    for (Player member : members) {
+                        member.sendMessage(message);
+                    }
+                    return null;
+                default:
+                    return standard(self, method.getName(), args, name);
+            }
+        });
+    }
+
+    /**
+     * @return A JDA instance that does nothing
+     */
+    static JDA jda() {
+        return proxy(JDA.class, (self, method, args) -> standard(self, method.getName(), args, "jda"));
+    }
+
+    /**
+     * The answer for Object's methods, and the default answer for the rest.
+     * Handlers end with this for methods they do not handle.
+     */
+    static Object standard(Object self, String method, Object[] args, String name) {
+        switch (method) {
+            case "equals":
+                return self == args[0];
+            case "hashCode":
+                return System.identityHashCode(self);
+            case "toString":
+                return name;
+            default:
+                return DEFAULT;
+        }
+    }
+
+    /**
+     * The default answer for a method: an empty collection, a stand-in for
+     * other interfaces, otherwise null, zero or false.
+     */
+    private static Object empty(Method method) {
+        Class<?> r = method.getReturnType();
+        if (r.isInterface()) {
+            if (r.isAssignableFrom(List.class)) {
+                return Collections.emptyList();
+            } else if (r == Set.class) {
+                return Collections.emptySet();
+            } else if (r == Map.class) {
+                return Collections.emptyMap();
+            }
+            return proxy(r, (self, m, args) -> standard(self, m.getName(), args, r.getSimpleName()));
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        InvocationHandler safe = (self, method, args) -> {
+            Object result = handler.invoke(self, method, args);
+            if (result == DEFAULT) {
+                result = empty(method);
+            }
+            if (result == null && method.getReturnType().isPrimitive()) {
+                Class<?> r = method.getReturnType();
+                if (r == boolean.class) {
+                    return false;
+                } else if (r == void.class) {
+                    return null;
+                } else if (r == char.class) {
+                    return '\0';
+                } else if (r == long.class) {
+                    return 0L;
+                } else if (r == double.class) {
+                    return 0.0;
+                } else if (r == float.class) {
+                    return 0.0f;
+                } else if (r == short.class) {
+                    return (short) 0;
+                } else if (r == byte.class) {
+                    return (byte) 0;
+                }
+                return 0;
+            }
+            return result;
+        };
+        return (T) Proxy.newProxyInstance(StandIns.class.getClassLoader(), new Class<?>[] {type}, safe);
+    }
+
+}
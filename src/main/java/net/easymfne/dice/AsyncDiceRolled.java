@@ -0,0 +1,149 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import java.util.UUID;
+
+import org.bukkit.event.Event;
+import org.bukkit.event.HandlerList;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Fired off the main thread for every roll, in-game or from Discord, after
+ * it has been rolled. The event carries a copy of the roll and nothing that
+ * refers back to the server, so listeners such as analytics plugins may keep
+ * it or hand it to other threads. A batch fires one event per expression.
+ * Rolls in bulk mode only fire BulkDiceRolled.
+ *
+ * The event is only built when something listens to it.
+ */
+public final class AsyncDiceRolled extends Event {
+
+    private static final HandlerList handlers = new HandlerList();
+
+    /**
+     * Who rolled the dice.
+     */
+    public enum Source {
+        CONSOLE, PLAYER, DISCORD
+    }
+
+    private final Source source;
+    private final UUID rollerId;
+    private final String rollerName;
+    private final String expression;
+    private final String label;
+    private final int[] dice;
+    private final int sides;
+    private final int modifier;
+    private final int total;
+
+    /**
+     * @param source Who rolled the dice
+     * @param rollerId The player's UUID, a Discord user ID in the low bits,
+     *            or null for the console
+     * @param rollerName The name shown for the roller
+     * @param roll The roll
+     * @param label The roll's label in a batch, or null
+     */
+    public AsyncDiceRolled(Source source, UUID rollerId, String rollerName, DiceRoll roll, String label) {
+        super(true);
+        this.source = source;
+        this.rollerId = rollerId;
+        this.rollerName = rollerName;
+        this.expression = roll.getExpression().getSource();
+        this.label = label;
+        this.dice = roll.getRolls();
+        this.sides = roll.getSides();
+        this.modifier = roll.getModifier();
+        this.total = roll.getTotal();
+    }
+
+    /**
+     * @return Whether any listener is registered, so that callers can skip
+     *         building the event
+     */
+    static boolean hasListeners() {
+        return handlers.getRegisteredListeners().length > 0;
+    }
+
+    public Source getSource() {
+        return source;
+    }
+
+    /**
+     * @return The player's UUID; for Discord rolls the low bits hold the
+     *         user ID, as in the roll journal; null for the console
+     */
+    public UUID getRollerId() {
+        return rollerId;
+    }
+
+    public String getRollerName() {
+        return rollerName;
+    }
+
+    /**
+     * @return The expression rolled; for a macro, its saved expression
+     */
+    public String getExpression() {
+        return expression;
+    }
+
+    /**
+     * @return The roll's label in a batch, or null
+     */
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * @return A copy of the kept dice, in the order they were thrown
+     */
+    public int[] getDice() {
+        return dice.clone();
+    }
+
+    /**
+     * @return The number of sides of the first dice term
+     */
+    public int getSides() {
+        return sides;
+    }
+
+    /**
+     * @return The constant modifier of the expression
+     */
+    public int getModifier() {
+        return modifier;
+    }
+
+    /**
+     * @return The sum of the kept dice plus the modifier
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    @Override
+    public @NotNull HandlerList getHandlers() {
+        return handlers;
+    }
+
+    public static HandlerList getHandlerList() {
+        return handlers;
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import org.bukkit.event.Event;
+import org.bukkit.event.HandlerList;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Fired instead of DiceRolled when a large pool is rolled in bulk mode. The
+ * individual dice are never materialized; listeners get a face histogram.
+ */
+public final class BulkDiceRolled extends Event {
+
+    private static final HandlerList handlers = new HandlerList();
+    private final String message;
+    private final BulkRoll roll;
+
+    public BulkDiceRolled(String message, BulkRoll roll) {
+        this.message = message;
+        this.roll = roll;
+    }
+
+    /**
+     * @return Whether any listener is registered, so that callers can skip
+     *         building the event
+     */
+    static boolean hasListeners() {
+        return handlers.getRegisteredListeners().length > 0;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return A copy of the histogram; index 0 holds the count of ones
+     */
+    public int[] getHistogram() {
+        return roll.getHistogram();
+    }
+
+    /**
+     * @param face A face value, from 1 to the number of sides
+     * @return How many dice showed that face
+     */
+    public int getFaceCount(int face) {
+        return roll.getFaceCount(face);
+    }
+
+    /**
+     * @return The number of dice rolled
+     */
+    public int getCount() {
+        return roll.getCount();
+    }
+
+    /**
+     * @return The number of sides per die
+     */
+    public int getSides() {
+        return roll.getSides();
+    }
+
+    /**
+     * @return The constant modifier
+     */
+    public int getModifier() {
+        return roll.getModifier();
+    }
+
+    /**
+     * @return The sum of all dice plus the modifier
+     */
+    public long getTotal() {
+        return roll.getTotal();
+    }
+
+    @Override
+    public @NotNull HandlerList getHandlers() {
+        return handlers;
+    }
+
+    public static HandlerList getHandlerList() {
+        return handlers;
+    }
+
+}
@@ -0,0 +1,201 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import java.util.Random;
+
+/**
+ * The outcome of rolling a very large pool of identical dice, kept as a face
+ * histogram rather than one value per die. The histogram is sampled directly
+ * by splitting the pool face by face with binomial draws, so both time and
+ * memory are proportional to the number of sides, not the number of dice.
+ */
+public final class BulkRoll {
+
+    /** Stirling series tail, log(k!) - [(k + 1/2) log(k + 1) - (k + 1) + log(2 pi)/2], for k below 10. */
+    private static final double[] STIRLING_TAIL = {
+        0.0810614667953272, 0.0413406959554092, 0.0276779256849983,
+        0.02079067210376509, 0.0166446911898211, 0.0138761288230707,
+        0.0118967099458917, 0.0104112652619720, 0.00925546218271273,
+        0.00833056343336287
+    };
+
+    private final int count;
+    private final int sides;
+    private final int modifier;
+    private final int[] histogram;
+    private final long total;
+
+    private BulkRoll(int count, int sides, int modifier, int[] histogram, long total) {
+        this.count = count;
+        this.sides = sides;
+        this.modifier = modifier;
+        this.histogram = histogram;
+        this.total = total;
+    }
+
+    /**
+     * Roll a pool of identical dice.
+     *
+     * @param random The source of randomness
+     * @param count The number of dice
+     * @param sides The number of sides per die
+     * @param modifier Constant added to the total
+     * @return The face histogram and total
+     */
+    public static BulkRoll roll(Random random, int count, int sides, int modifier) {
+        int[] histogram = new int[sides];
+        int remaining = count;
+        long total = modifier;
+        for (int face = 1; face < sides && remaining > 0; ++face) {
+            int n = binomial(random, remaining, 1.0 / (sides - face + 1));
+            histogram[face - 1] = n;
+            remaining -= n;
+            total += (long) face * n;
+        }
+        histogram[sides - 1] += remaining;
+        total += (long) sides * remaining;
+        return new BulkRoll(count, sides, modifier, histogram, total);
+    }
+
+    /**
+     * @return The number of dice rolled
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return The number of sides per die
+     */
+    public int getSides() {
+        return sides;
+    }
+
+    /**
+     * @return The constant modifier
+     */
+    public int getModifier() {
+        return modifier;
+    }
+
+    /**
+     * @param face A face value, from 1 to the number of sides
+     * @return How many dice showed that face
+     */
+    public int getFaceCount(int face) {
+        return histogram[face - 1];
+    }
+
+    /**
+     * @return A copy of the histogram; index 0 holds the count of ones
+     */
+    public int[] getHistogram() {
+        return histogram.clone();
+    }
+
+    /**
+     * @return The sum of all dice plus the modifier
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Draw from the binomial distribution B(n, p).
+     *
+     * @param random The source of randomness
+     * @param n Number of trials
+     * @param p Probability of success
+     * @return Number of successes
+     */
+    static int binomial(Random random, int n, double p) {
+        if (n <= 0 || p <= 0) {
+            return 0;
+        }
+        if (p >= 1) {
+            return n;
+        }
+        if (p > 0.5) {
+            return n - binomial(random, n, 1 - p);
+        }
+        if (n * p < 10) {
+            return binomialInversion(random, n, p);
+        }
+        return binomialBtrs(random, n, p);
+    }
+
+    /**
+     * Count successes by summing geometric waiting times; cheap when the mean
+     * n * p is small.
+     */
+    private static int binomialInversion(Random random, int n, double p) {
+        double logQ = Math.log1p(-p);
+        double trials = 0;
+        int successes = 0;
+        while (true) {
+            trials += Math.ceil(Math.log(1 - random.nextDouble()) / logQ);
+            if (trials > n) {
+                return successes;
+            }
+            ++successes;
+        }
+    }
+
+    /**
+     * Hormann's transformed rejection with squeeze (BTRS), valid for
+     * n * p >= 10 and p <= 0.5. Expected constant time for any n.
+     */
+    private static int binomialBtrs(Random random, int n, double p) {
+        double stddev = Math.sqrt(n * p * (1 - p));
+        double b = 1.15 + 2.53 * stddev;
+        double a = -0.0873 + 0.0248 * b + 0.01 * p;
+        double c = n * p + 0.5;
+        double vr = 0.92 - 4.2 / b;
+        double r = p / (1 - p);
+        double alpha = (2.83 + 5.1 / b) * stddev;
+        double m = Math.floor((n + 1) * p);
+        while (true) {
+            double u = random.nextDouble() - 0.5;
+            double v = random.nextDouble();
+            double us = 0.5 - Math.abs(u);
+            double k = Math.floor((2 * a / us + b) * u + c);
+            if (us >= 0.07 && v <= vr) {
+                return (int) k;
+            }
+            if (k < 0 || k > n) {
+                continue;
+            }
+            v = Math.log(v * alpha / (a / (us * us) + b));
+            double bound = (m + 0.5) * Math.log((m + 1) / (r * (n - m + 1)))
+                    + (n + 1) * Math.log((n - m + 1) / (n - k + 1))
+                    + (k + 0.5) * Math.log(r * (n - k + 1) / (k + 1))
+                    + stirlingTail(m) + stirlingTail(n - m)
+                    - stirlingTail(k) - stirlingTail(n - k);
+            if (v <= bound) {
+                return (int) k;
+            }
+        }
+    }
+
+    private static double stirlingTail(double k) {
+        if (k <= 9) {
+            return STIRLING_TAIL[(int) k];
+        }
+        double kp1sq = (k + 1) * (k + 1);
+        return (1.0 / 12 - (1.0 / 360 - 1.0 / 1260 / kp1sq) / kp1sq) / (k + 1);
+    }
+
+}
@@ -0,0 +1,231 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import br.com.devpaulo.legendchat.api.Legendchat;
+import br.com.devpaulo.legendchat.channels.types.Channel;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.bukkit.ChatColor;
+import org.bukkit.entity.Player;
+
+/**
+ * An index of the LegendChat channels by name, with each channel's color
+ * already turned into a chat color code. The index is an immutable snapshot
+ * that is replaced as a whole, so lookups need no locking and, for names
+ * spelled as the channel spells them or in lower case, allocate nothing.
+ *
+ * The snapshot is rebuilt on reload, and on demand when a channel turns up
+ * that it does not know about, at most once per REBUILD_INTERVAL so that
+ * names with no matching channel do not cause a rebuild every time.
+ *
+ * The channels are read through a Source, which is LegendChat itself on a
+ * server and stand-in channels in the soak harness.
+ */
+public class ChannelIndex {
+
+    private static final long REBUILD_INTERVAL = 5000L;
+
+    /** The ChatColor names a channel color may use. */
+    private static final String[] COLORS = {
+        "BLACK", "DARK_BLUE", "DARK_GREEN", "DARK_AQUA", "DARK_RED",
+        "DARK_PURPLE", "GOLD", "GRAY", "DARK_GRAY", "BLUE", "GREEN",
+        "AQUA", "RED", "LIGHT_PURPLE", "YELLOW", "WHITE", "MAGIC",
+        "BOLD", "STRIKETHROUGH", "UNDERLINE", "ITALIC", "RESET"
+    };
+
+    /**
+     * Where the channels come from.
+     */
+    interface Source {
+
+        /**
+         * @return Every channel
+         */
+        Collection<Channel> getChannels();
+
+        /**
+         * @param player A player
+         * @return The channel the player is talking in, or null
+         */
+        Channel getFocusedChannel(Player player);
+    }
+
+    /** Reads the channels from LegendChat's own managers. */
+    static final Source LEGENDCHAT = new Source() {
+        @Override
+        public Collection<Channel> getChannels() {
+            return Legendchat.getChannelManager().getChannels();
+        }
+
+        @Override
+        public Channel getFocusedChannel(Player player) {
+            return Legendchat.getPlayerManager().getPlayerFocusedChannel(player);
+        }
+    };
+
+    /**
+     * A channel and its resolved color code.
+     */
+    public static final class Entry {
+
+        private final Channel channel;
+        private final String color;
+
+        Entry(Channel channel, String color) {
+            this.channel = channel;
+            this.color = color;
+        }
+
+        public Channel getChannel() {
+            return channel;
+        }
+
+        /**
+         * @return The channel's color code, white if it has none we know of
+         */
+        public String getColor() {
+            return color;
+        }
+    }
+
+    /**
+     * One immutable generation of the index.
+     */
+    private static final class Snapshot {
+
+        final Map<String, Entry> byName;
+        final Map<Channel, Entry> byChannel;
+
+        Snapshot(Map<String, Entry> byName, Map<Channel, Entry> byChannel) {
+            this.byName = byName;
+            this.byChannel = byChannel;
+        }
+    }
+
+    private final Source source;
+    private volatile Snapshot snapshot = new Snapshot(new HashMap<>(), new IdentityHashMap<>());
+    private volatile long lastRebuild;
+
+    /**
+     * Build the index from the source's current channels.
+     *
+     * @param source Where the channels come from, usually LEGENDCHAT
+     */
+    ChannelIndex(Source source) {
+        this.source = source;
+        rebuild();
+    }
+
+    /**
+     * Replace the index with one built from the source's current channels.
+     */
+    public final void rebuild() {
+        Map<String, Entry> byName = new HashMap<>();
+        Map<Channel, Entry> byChannel = new IdentityHashMap<>();
+        for (Channel channel : source.getChannels()) {
+            Entry entry = new Entry(channel, resolveColor(channel.getStringColor()));
+            byName.put(channel.getName(), entry);
+            byName.putIfAbsent(channel.getName().toLowerCase(Locale.ROOT), entry);
+            byChannel.put(channel, entry);
+        }
+        snapshot = new Snapshot(byName, byChannel);
+        lastRebuild = System.currentTimeMillis();
+    }
+
+    /**
+     * Find a channel by name, ignoring case.
+     *
+     * @param name The channel name
+     * @return The channel's entry, or null if there is no such channel
+     */
+    public Entry get(String name) {
+        if (name == null) {
+            return null;
+        }
+        Entry entry = find(snapshot, name);
+        if (entry == null && rebuildAllowed()) {
+            rebuild();
+            entry = find(snapshot, name);
+        }
+        return entry;
+    }
+
+    /**
+     * Find the entry of a channel handle, such as a player's focused channel.
+     *
+     * @param channel The channel
+     * @return The channel's entry, or null if the channel is null
+     */
+    public Entry get(Channel channel) {
+        if (channel == null) {
+            return null;
+        }
+        Entry entry = snapshot.byChannel.get(channel);
+        if (entry == null) {
+            if (rebuildAllowed()) {
+                rebuild();
+                entry = snapshot.byChannel.get(channel);
+            }
+            if (entry == null) {
+                entry = new Entry(channel, resolveColor(channel.getStringColor()));
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Find the entry of the channel a player is talking in.
+     *
+     * @param player The player
+     * @return The channel's entry, or null if the player has no channel
+     */
+    public Entry getFocused(Player player) {
+        return get(source.getFocusedChannel(player));
+    }
+
+    private static Entry find(Snapshot snapshot, String name) {
+        Entry entry = snapshot.byName.get(name);
+        if (entry == null) {
+            entry = snapshot.byName.get(name.toLowerCase(Locale.ROOT));
+        }
+        return entry;
+    }
+
+    private boolean rebuildAllowed() {
+        return System.currentTimeMillis() - lastRebuild >= REBUILD_INTERVAL;
+    }
+
+    /**
+     * Turn a LegendChat color name into a chat color code, defaulting to
+     * white for anything unrecognised.
+     */
+    static String resolveColor(String name) {
+        if (name != null) {
+            String upper = name.toUpperCase(Locale.ROOT);
+            for (String color : COLORS) {
+                if (color.equals(upper)) {
+                    return ChatColor.valueOf(color).toString();
+                }
+            }
+        }
+        return ChatColor.WHITE.toString();
+    }
+
+}
@@ -14,78 +14,217 @@
  */
 package net.easymfne.dice;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.bukkit.ChatColor;
-import org.bukkit.configuration.Configuration;
-import org.bukkit.plugin.PluginManager;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.permissions.Permissible;
 
 /**
  * Configuration helper class, with methods for accessing the configuration.
  *
+ * An instance is an immutable snapshot of config.yml, holding the compiled
+ * message templates, color codes and parser. A reload builds a whole new
+ * snapshot, which can be done off the main thread, and the plugin publishes
+ * it with a single volatile write, so a roll always sees one consistent
+ * configuration.
+ *
  * @author Eric Hildebrand
  */
-public class Config {
+public final class Config {
+
+    /** Number of compiled dice expressions kept in the parse cache. */
+    private static final int EXPRESSION_CACHE_SIZE = 256;
 
-    private final Dice plugin;
-    public String message_broadcast,
+    private final DiceParser parser;
+    private final RandomSource random;
+    private final String random_mode;
+    private final long random_seed;
+    private final MessageTemplate broadcastTemplate,
+            broadcastMultiTemplate,
+            privateTemplate;
+    public final String message_broadcast,
             message_broadcast_multi,
             message_private,
             natColors_normal,
             natColors_fail,
             natColors_critfail,
             natColors_crit,
-            natColors_critcrit;
-    public int broadcast_range,
+            natColors_critcrit,
+            metrics_prometheus;
+    public final int broadcast_range,
             default_count,
             default_sides,
             maximum_count,
-            maximum_sides;
-    public boolean broadcast_crossworld,
+            maximum_sides,
+            discord_workers,
+            discord_coalesce,
+            bulk_maximum,
+            journal_segmentSize,
+            metrics_interval;
+    public final boolean broadcast_crossworld,
             logging,
             broadcast_useChannel,
-            natColors_enabled;
+            natColors_enabled,
+            bulk_enabled,
+            autoReload;
 
-    public boolean useLegendChat;
+    public final boolean useLegendChat;
+
+    private final long cooldown_penalty;
+    private final RateLimiter.Tier cooldown_default,
+            cooldown_discord;
+    private final List<RateLimiter.Tier> cooldown_tiers;
 
     /**
-     * Instantiate the class and give it a reference back to the plugin itself.
+     * Build a snapshot from a loaded configuration.
      *
-     * @param plugin The Dice plugin
+     * @param cfg The configuration values
+     * @param legendChat Is LegendChat installed?
      */
-    public Config(Dice plugin) {
-        this.plugin = plugin;
+    public Config(ConfigurationSection cfg, boolean legendChat) {
+        this(cfg, legendChat, null);
     }
 
     /**
-     * Load config values from file
+     * Build a snapshot from a loaded configuration, keeping the random source
+     * of the configuration it replaces if "random.mode" and "random.seed" are
+     * unchanged. A seeded session then carries on with its sequence across a
+     * reload instead of starting over.
+     *
+     * @param cfg The configuration values
+     * @param legendChat Is LegendChat installed?
+     * @param previous The configuration being replaced, or null
      */
-    void load() {
-        plugin.reloadConfig();
-        Configuration cfg = plugin.getConfig();
+    Config(ConfigurationSection cfg, boolean legendChat, Config previous) {
         message_broadcast = cfg.getString("messages.broadcast", "&c[&fDice&c] &f{PLAYER} rolled {RESULT} &7({COUNT}d{SIDES})");
         message_broadcast_multi = cfg.getString("messages.broadcastMulti", "&c[&fDice&c] &f{PLAYER} rolled {COUNT}d{SIDES} and got &a{TOTAL} &7({RESULT}&7)");
         message_private = cfg.getString("messages.private", "&4[&fDice&4] &fYou rolled {RESULT} &7({COUNT}d{SIDES})");
+        broadcastTemplate = MessageTemplate.compile(message_broadcast);
+        broadcastMultiTemplate = MessageTemplate.compile(message_broadcast_multi);
+        privateTemplate = MessageTemplate.compile(message_private);
         broadcast_range = cfg.getInt("broadcast.range", -1);
         default_count = cfg.getInt("default.count", 1);
         default_sides = cfg.getInt("default.sides", 6);
         maximum_count = cfg.getInt("maximum.count", 6);
         maximum_sides = cfg.getInt("maximum.sides", 20);
+        bulk_enabled = cfg.getBoolean("bulk.enable", false);
+        bulk_maximum = cfg.getInt("bulk.maximum", 1000000);
         broadcast_crossworld = cfg.getBoolean("broadcast.crossworld", false);
-        broadcast_useChannel = cfg.getBoolean("broadcast.useChannel", true);
         logging = cfg.getBoolean("logging", false);
+        journal_segmentSize = cfg.getInt("journal.segmentSize", 16);
+        metrics_prometheus = cfg.getString("metrics.prometheus", "");
+        metrics_interval = cfg.getInt("metrics.interval", 15);
+        autoReload = cfg.getBoolean("autoReload", false);
+        discord_workers = cfg.getInt("discord.workers", 2);
+        discord_coalesce = cfg.getInt("discord.coalesce", 250);
         natColors_enabled = cfg.getBoolean("natColors.enable", true);
         natColors_normal = ChatColor.translateAlternateColorCodes('&', cfg.getString("natColors.normal", "&e"));
         natColors_critfail = ChatColor.translateAlternateColorCodes('&', cfg.getString("natColors.fail", "&4"));
         natColors_fail = ChatColor.translateAlternateColorCodes('&', cfg.getString("natColors.fail", "&c"));
         natColors_crit = ChatColor.translateAlternateColorCodes('&', cfg.getString("natColors.crit", "&a"));
         natColors_critcrit = ChatColor.translateAlternateColorCodes('&', cfg.getString("natColors.crit", "&2"));
+        parser = new DiceParser(default_count, default_sides, EXPRESSION_CACHE_SIZE);
+        random_mode = cfg.getString("random.mode", "threadlocal");
+        random_seed = cfg.getLong("random.seed", 0L);
+        random = previous != null && previous.random_mode.equalsIgnoreCase(random_mode)
+                && previous.random_seed == random_seed
+                ? previous.random
+                : RandomSource.create(random_mode, random_seed);
 
         // plugin check
-        PluginManager pm = plugin.getServer().getPluginManager();
-        if(pm.getPlugin("LegendChat") != null) {
-            useLegendChat = true;
-        } else {
-            broadcast_useChannel = false;
+        useLegendChat = legendChat;
+        broadcast_useChannel = legendChat && cfg.getBoolean("broadcast.useChannel", true);
+
+        /*
+         * Load the rate limiter tiers. Tiers with a permission are checked in
+         * the order they appear; the "default" tier applies to everyone else.
+         */
+        cooldown_penalty = (long) (cfg.getDouble("cooldown.penalty", 1.5) * 1000);
+        RateLimiter.Tier defaultTier = new RateLimiter.Tier("default", null, 1, 5600);
+        List<RateLimiter.Tier> tiers = new ArrayList<>();
+        Map<String, RateLimiter.Tier> byName = new HashMap<>();
+        ConfigurationSection section = cfg.getConfigurationSection("cooldown.tiers");
+        if (section != null) {
+            for (String name : section.getKeys(false)) {
+                ConfigurationSection values = section.getConfigurationSection(name);
+                if (values == null) {
+                    continue;
+                }
+                RateLimiter.Tier tier = new RateLimiter.Tier(name,
+                        values.getString("permission", null),
+                        values.getInt("burst", 1),
+                        (long) (values.getDouble("refill", 5.6) * 1000));
+                byName.put(name, tier);
+                if (name.equals("default")) {
+                    defaultTier = tier;
+                } else if (tier.permission != null) {
+                    tiers.add(tier);
+                }
+            }
         }
+        cooldown_default = defaultTier;
+        cooldown_tiers = Collections.unmodifiableList(tiers);
+        RateLimiter.Tier discordTier = byName.get(cfg.getString("cooldown.discord", "default"));
+        cooldown_discord = discordTier != null ? discordTier : defaultTier;
+    }
+
+    /**
+     * Read and compile config.yml. This does file I/O and YAML parsing, so it
+     * may be called from any thread.
+     *
+     * @param file The configuration file
+     * @param legendChat Is LegendChat installed?
+     * @param previous The configuration being replaced, or null
+     * @return The new snapshot
+     * @throws IOException If the file cannot be read
+     * @throws InvalidConfigurationException If the file is not valid YAML
+     */
+    static Config load(File file, boolean legendChat, Config previous)
+            throws IOException, InvalidConfigurationException {
+        YamlConfiguration yaml = new YamlConfiguration();
+        yaml.load(file);
+        return new Config(yaml, legendChat, previous);
+    }
+
+    /**
+     * @return Milliseconds added to the wait when a roll is refused
+     */
+    public long getCooldownPenalty() {
+        return cooldown_penalty;
+    }
+
+    /**
+     * @param p The user rolling dice
+     * @return The first rate limiter tier the user has permission for, as
+     *         recorded in their Perms snapshot
+     */
+    public RateLimiter.Tier getCooldownTier(Permissible p) {
+        int tier = Perms.cooldownTier(p);
+        return tier >= 0 && tier < cooldown_tiers.size() ? cooldown_tiers.get(tier) : cooldown_default;
+    }
+
+    /**
+     * @return The rate limiter tiers granted by a permission, in the order
+     *         they are checked
+     */
+    List<RateLimiter.Tier> getCooldownTiers() {
+        return cooldown_tiers;
+    }
+
+    /**
+     * @return The rate limiter tier applied to Discord users
+     */
+    public RateLimiter.Tier getDiscordCooldownTier() {
+        return cooldown_discord;
     }
 
     /**
@@ -98,6 +237,21 @@ public class Config {
         return message_broadcast;
     }
 
+    /**
+     * @return The compiled broadcast template, or null if it is empty
+     */
+    public MessageTemplate getBroadcastTemplate() {
+        return broadcastTemplate;
+    }
+
+    /**
+     * @return The compiled multi-dice broadcast template, or null if it is
+     *         empty
+     */
+    public MessageTemplate getBroadcastMultiTemplate() {
+        return broadcastMultiTemplate;
+    }
+
     /**
      * @return The allowable broadcast range, defaulting to -1
      */
@@ -119,6 +273,49 @@ public class Config {
         return default_sides;
     }
 
+    /**
+     * @return The largest pool that may be rolled in bulk mode.
+     */
+    public int getBulkMaximum() {
+        return bulk_maximum;
+    }
+
+    /**
+     * @return Milliseconds to collect Discord replies before sending them.
+     */
+    public int getDiscordCoalesceMillis() {
+        return discord_coalesce;
+    }
+
+    /**
+     * @return The number of threads that parse and roll Discord messages.
+     */
+    public int getDiscordWorkers() {
+        return discord_workers;
+    }
+
+    /**
+     * @return The size of each roll journal segment file, in megabytes.
+     */
+    public int getJournalSegmentSize() {
+        return journal_segmentSize;
+    }
+
+    /**
+     * @return The file the metrics are exported to, or an empty string if the
+     * export is disabled.
+     */
+    public String getMetricsPrometheus() {
+        return metrics_prometheus;
+    }
+
+    /**
+     * @return The number of seconds between metrics exports.
+     */
+    public int getMetricsInterval() {
+        return metrics_interval;
+    }
+
     /**
      * @return The maximum number of dice that can be rolled at once.
      */
@@ -133,6 +330,20 @@ public class Config {
         return maximum_sides;
     }
 
+    /**
+     * @return The dice expression parser, configured with the default dice
+     */
+    public DiceParser getParser() {
+        return parser;
+    }
+
+    /**
+     * @return The source of randomness shared by every roll path
+     */
+    public RandomSource getRandom() {
+        return random;
+    }
+
     /**
      * Get the desired private message template. The default case looks like:
      * [Dice] You rolled 2, 3, 6, 1, 1 (5d6)
@@ -144,6 +355,13 @@ public class Config {
         return message_private;
     }
 
+    /**
+     * @return The compiled private template, or null if it is empty
+     */
+    public MessageTemplate getPrivateTemplate() {
+        return privateTemplate;
+    }
+
     /**
      * @return Do dice broadcasts travel between worlds?
      */
@@ -152,7 +370,21 @@ public class Config {
     }
 
     /**
-     * @return Are we logging all dice rolls?
+     * @return Can pools above maximum.count be rolled as histograms?
+     */
+    public boolean isBulkEnabled() {
+        return bulk_enabled;
+    }
+
+    /**
+     * @return Should config.yml be reloaded automatically when it changes?
+     */
+    public boolean isAutoReload() {
+        return autoReload;
+    }
+
+    /**
+     * @return Are we writing all dice rolls to the roll journal?
      */
     public boolean isLogging() {
         return logging;
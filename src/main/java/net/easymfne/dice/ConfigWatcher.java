@@ -0,0 +1,107 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the plugin's data folder and reloads the configuration when
+ * config.yml is written. Editors often save a file in several steps, so the
+ * reload waits until the file has been quiet for QUIET_MILLIS.
+ */
+public class ConfigWatcher implements Runnable {
+
+    private static final long QUIET_MILLIS = 500L;
+
+    private final Dice plugin;
+    private final String fileName;
+    private final WatchService watcher;
+    private final Thread thread;
+
+    /**
+     * Start watching a configuration file.
+     *
+     * @param plugin The plugin to reload
+     * @param file The configuration file
+     * @throws IOException If the folder cannot be watched
+     */
+    public ConfigWatcher(Dice plugin, File file) throws IOException {
+        this.plugin = plugin;
+        this.fileName = file.getName();
+        Path folder = file.getAbsoluteFile().getParentFile().toPath();
+        this.watcher = folder.getFileSystem().newWatchService();
+        folder.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        this.thread = new Thread(this, "Dice-ConfigWatcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Stop watching.
+     */
+    public void close() {
+        try {
+            watcher.close();
+        } catch (IOException ex) {
+            // nothing left to release
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                if (!touched(watcher.take())) {
+                    continue;
+                }
+                /* Wait for the writes to settle */
+                WatchKey key;
+                while ((key = watcher.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    touched(key);
+                }
+                plugin.reload(null);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            // closed
+        }
+    }
+
+    /**
+     * Consume a key's events and reset it.
+     *
+     * @return Whether any of the events were for the configuration file
+     */
+    private boolean touched(WatchKey key) {
+        boolean touched = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+            if (context instanceof Path && ((Path) context).getFileName().toString().equals(fileName)) {
+                touched = true;
+            }
+        }
+        key.reset();
+        return touched;
+    }
+
+}
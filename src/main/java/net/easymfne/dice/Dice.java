@@ -16,13 +16,20 @@ package net.easymfne.dice;
 
 import github.scarsz.discordsrv.DiscordSRV;
 import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Field;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.bukkit.ChatColor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.PluginDescriptionFile;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.plugin.java.JavaPluginLoader;
 
 /**
  * This is the main class of the Dice plugin, responsible for its own setup,
@@ -34,9 +41,21 @@ import org.bukkit.plugin.java.JavaPlugin;
  */
 public class Dice extends JavaPlugin {
 
-    private Config config = new Config(this);
+    private volatile Config config = null;
+    private boolean legendChat = false;
+    private ConfigWatcher configWatcher = null;
     protected RollCommand rollCommand = null;
-    private DiscordChatListener discordChat = null;
+    private PlayerGrid playerGrid = null;
+    private RateLimiter rateLimiter = null;
+    private volatile DiscordChatListener discordChat = null;
+    private volatile RollJournal journal = null;
+    private RollHistory rollHistory = null;
+    private final RollMetrics metrics = new RollMetrics();
+    private final Scheduler scheduler = new Scheduler(this);
+    private Scheduler.Task metricsExport = null;
+    private Scheduler.Task limiterEviction = null;
+    private ChannelIndex channelIndex = null;
+    private MacroStore macroStore = null;
 
     /*
      * Strings used in the fancyLog() methods.
@@ -44,6 +63,26 @@ public class Dice extends JavaPlugin {
     private final String logPrefix = ChatColor.RED + "[Dice] ";
     private final String logColor = ChatColor.WHITE.toString();
 
+    /**
+     * Constructor used by the server's plugin loader.
+     */
+    public Dice() {
+        super();
+    }
+
+    /**
+     * Constructor for running the plugin outside of a server, against a
+     * stand-in Server, such as in the soak harness.
+     *
+     * @param loader Loader bound to the stand-in server
+     * @param description The contents of plugin.yml
+     * @param dataFolder Folder for config.yml and the plugin's other files
+     * @param file The plugin jar, which need not exist
+     */
+    protected Dice(JavaPluginLoader loader, PluginDescriptionFile description, File dataFolder, File file) {
+        super(loader, description, dataFolder, file);
+    }
+
     /**
      * Log a message to the console using color, with a specific logging Level.
      * If there is no console open, log the message without any coloration.
@@ -75,20 +114,166 @@ public class Dice extends JavaPlugin {
         return config;
     }
 
+    protected PlayerGrid getPlayerGrid() {
+        return playerGrid;
+    }
+
+    protected RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * @return The roll journal, or null if logging is disabled
+     */
+    protected RollJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * @return The query interface over the roll journal
+     */
+    protected RollHistory getRollHistory() {
+        return rollHistory;
+    }
+
+    /**
+     * @return The LegendChat channel index, or null if LegendChat is absent
+     */
+    protected ChannelIndex getChannelIndex() {
+        return channelIndex;
+    }
+
+    /**
+     * @return Where the channel index reads LegendChat's channels from
+     */
+    ChannelIndex.Source getChannelSource() {
+        return ChannelIndex.LEGENDCHAT;
+    }
+
+    /**
+     * Build or rebuild the LegendChat channel index if LegendChat is present.
+     */
+    private void updateChannelIndex() {
+        if (!config.useLegendChat) {
+            channelIndex = null;
+        } else if (channelIndex == null) {
+            channelIndex = new ChannelIndex(getChannelSource());
+        } else {
+            channelIndex.rebuild();
+        }
+    }
+
+    /**
+     * @return The players' saved roll macros
+     */
+    protected MacroStore getMacroStore() {
+        return macroStore;
+    }
+
+    /**
+     * @return The scheduler for the plugin's own tasks, which knows about
+     *         Folia's regions
+     */
+    protected Scheduler getTaskScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @return The roll counters and latency histograms
+     */
+    protected RollMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return The Discord reply aggregator, or null if DiscordSRV is absent
+     */
+    protected DiscordOutbox getDiscordOutbox() {
+        return discordChat == null ? null : discordChat.getOutbox();
+    }
+
+    /**
+     * (Re)schedule the periodic Prometheus export to match the "metrics"
+     * settings.
+     */
+    private void updateMetricsExport() {
+        if (metricsExport != null) {
+            metricsExport.cancel();
+            metricsExport = null;
+        }
+        String path = config.getMetricsPrometheus();
+        if (path == null || path.isEmpty()) {
+            return;
+        }
+        File file = new File(path);
+        final File target = file.isAbsolute() ? file : new File(getDataFolder(), path);
+        long period = Math.max(1, config.getMetricsInterval()) * 20L;
+        metricsExport = scheduler.runAsyncTimer(() -> {
+            try {
+                metrics.writePrometheus(target, getDiscordOutbox(), journal);
+            } catch (IOException ex) {
+                getLogger().log(Level.WARNING, "Could not write metrics to " + target, ex);
+            }
+        }, period, period);
+    }
+
+    /**
+     * Open or close the roll journal to match the "logging" setting, and
+     * reopen it if its segment size changed.
+     *
+     * @param previous The configuration being replaced, or null
+     */
+    private void updateJournal(Config previous) {
+        if (journal != null && previous != null
+                && previous.getJournalSegmentSize() != config.getJournalSegmentSize()) {
+            journal.close();
+            journal = null;
+        }
+        if (config.isLogging() && journal == null) {
+            journal = new RollJournal(new File(getDataFolder(), "journal"),
+                    config.getJournalSegmentSize() * 1024 * 1024, getLogger());
+        } else if (!config.isLogging() && journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
     /**
-     * Unregister and null the command handler, then null the configuration
-     * instance, before shutting down and displaying the milliseconds it took.
+     * Stop the Discord listener first, so that its workers finish while the
+     * rest of the plugin is still in place, then unregister and null the
+     * command handler and the configuration instance, before shutting down
+     * and displaying the milliseconds it took.
      */
     @Override
     public void onDisable() {
         long start = System.currentTimeMillis();
         fancyLog("=== DISABLE START ===");
+        stopDiscord();
         rollCommand.close();
         rollCommand = null;
+        macroStore.close();
+        macroStore = null;
+        playerGrid = null;
+        rateLimiter = null;
+        rollHistory = null;
+        channelIndex = null;
+        if (configWatcher != null) {
+            configWatcher.close();
+            configWatcher = null;
+        }
+        Perms.clear();
+        if (metricsExport != null) {
+            metricsExport.cancel();
+            metricsExport = null;
+        }
+        if (limiterEviction != null) {
+            limiterEviction.cancel();
+            limiterEviction = null;
+        }
         config = null;
-        if(discordChat != null) {
-            DiscordSRV.api.unsubscribe(discordChat);
-            discordChat = null;
+        if (journal != null) {
+            journal.close();
+            journal = null;
         }
         fancyLog("=== DISABLE COMPLETE ("
                 + (System.currentTimeMillis() - start)
@@ -110,7 +295,25 @@ public class Dice extends JavaPlugin {
             fancyLog("Saved default config.yml");
         }
 
-        config.load();
+        legendChat = getServer().getPluginManager().getPlugin("LegendChat") != null;
+        try {
+            config = Config.load(configFile, legendChat, null);
+        } catch (IOException | InvalidConfigurationException ex) {
+            getLogger().log(Level.SEVERE, "Could not load config.yml, using the defaults", ex);
+            config = new Config(new YamlConfiguration(), legendChat);
+        }
+        fancyLog("Random source: " + config.getRandom().describe());
+        updateJournal(null);
+        rollHistory = new RollHistory(new File(getDataFolder(), "journal"), 64);
+        playerGrid = new PlayerGrid(this);
+        playerGrid.reset(config.getBroadcastRange(), config.isCrossworld());
+        getServer().getPluginManager().registerEvents(playerGrid, this);
+        rateLimiter = new RateLimiter();
+        getServer().getPluginManager().registerEvents(rateLimiter, this);
+        getServer().getPluginManager().registerEvents(new Perms.Refresher(), this);
+        Perms.setTiers(config.getCooldownTiers());
+        limiterEviction = scheduler.runAsyncTimer(rateLimiter::evictIdle, 1200L, 1200L);
+        updateChannelIndex();
         if (config.broadcast_useChannel) {
             getServer().getPluginManager().registerEvents(new LegendChatListener(this), this);
         }
@@ -126,9 +329,16 @@ public class Dice extends JavaPlugin {
 //            } catch (Exception ex) {
 //                Logger.getLogger(Dice.class.getName()).log(Level.SEVERE, null, ex);
 //            }
-            DiscordSRV.api.subscribe(discordChat = new DiscordChatListener(this));
+            startDiscord();
+        }
+        macroStore = new MacroStore(new File(getDataFolder(), "macros"), getLogger());
+        getServer().getPluginManager().registerEvents(macroStore, this);
+        for (Player player : getServer().getOnlinePlayers()) {
+            macroStore.preload(player.getUniqueId());
         }
         rollCommand = new RollCommand(this);
+        updateMetricsExport();
+        updateWatcher();
         fancyLog("=== ENABLE COMPLETE ("
                 + (System.currentTimeMillis() - start)
                 + "ms) ===");
@@ -138,12 +348,120 @@ public class Dice extends JavaPlugin {
      * Reload the plugin's configuration from disk and show how long it took.
      */
     public void reload() {
-        long start = System.currentTimeMillis();
+        reload(null);
+    }
+
+    /**
+     * Reload the plugin's configuration from disk. The file is read on a
+     * background thread, and the new Config is put in place on the main
+     * thread. If the file cannot be loaded, the current Config is kept. May
+     * be called from any thread.
+     *
+     * @param sender Who to tell when the reload is done, or null
+     */
+    public void reload(final CommandSender sender) {
+        final long start = System.currentTimeMillis();
+        final File configFile = new File(getDataFolder(), "config.yml");
         fancyLog("=== RELOAD START ===");
-        config.load();
-        fancyLog("=== RELOAD COMPLETE ("
-                + (System.currentTimeMillis() - start)
-                + "ms) ===");
+        scheduler.runAsync(() -> {
+            Config next = null;
+            try {
+                next = Config.load(configFile, legendChat, config);
+            } catch (IOException | InvalidConfigurationException ex) {
+                getLogger().log(Level.WARNING, "Could not reload config.yml, keeping the current configuration", ex);
+            }
+            final Config loaded = next;
+            if (!isEnabled()) {
+                return;
+            }
+            scheduler.runGlobal(() -> {
+                if (loaded == null) {
+                    if (sender != null) {
+                        sender.sendMessage(ChatColor.RED + "Could not reload config.yml, see the console");
+                    }
+                    return;
+                }
+                apply(loaded);
+                fancyLog("=== RELOAD COMPLETE ("
+                        + (System.currentTimeMillis() - start)
+                        + "ms) ===");
+                if (sender != null) {
+                    sender.sendMessage("Configuration reloaded");
+                }
+            });
+        });
+    }
+
+    /**
+     * Publish a new configuration and bring the components that depend on it
+     * up to date.
+     *
+     * @param next The new configuration
+     */
+    private void apply(Config next) {
+        Config previous = config;
+        config = next;
+        updateJournal(previous);
+        updateDiscord(previous);
+        playerGrid.reset(next.getBroadcastRange(), next.isCrossworld());
+        updateMetricsExport();
+        updateChannelIndex();
+        updateWatcher();
+        Perms.setTiers(next.getCooldownTiers());
+    }
+
+    /**
+     * Subscribe a new Discord listener, built from the current configuration.
+     */
+    private void startDiscord() {
+        discordChat = new DiscordChatListener(this);
+        DiscordSRV.api.subscribe(discordChat);
+    }
+
+    /**
+     * Unsubscribe the Discord listener, if any, and wait for it to finish the
+     * rolls it has already taken.
+     */
+    private void stopDiscord() {
+        if (discordChat != null) {
+            DiscordSRV.api.unsubscribe(discordChat);
+            discordChat.close();
+            discordChat = null;
+        }
+    }
+
+    /**
+     * Replace the Discord listener if its worker count or reply coalescing
+     * window changed, as both are fixed when it is built. The old listener
+     * finishes its rolls in the background, so a reload does not wait on it.
+     *
+     * @param previous The configuration being replaced
+     */
+    private void updateDiscord(Config previous) {
+        if (discordChat != null
+                && (previous.getDiscordWorkers() != config.getDiscordWorkers()
+                || previous.getDiscordCoalesceMillis() != config.getDiscordCoalesceMillis())) {
+            DiscordChatListener old = discordChat;
+            DiscordSRV.api.unsubscribe(old);
+            startDiscord();
+            old.closeLater();
+        }
+    }
+
+    /**
+     * Start or stop watching config.yml to match the "autoReload" setting.
+     */
+    private void updateWatcher() {
+        if (config.isAutoReload() && configWatcher == null) {
+            try {
+                configWatcher = new ConfigWatcher(this, new File(getDataFolder(), "config.yml"));
+            } catch (IOException ex) {
+                getLogger().log(Level.WARNING, "Could not watch config.yml for changes", ex);
+            }
+        } else if (!config.isAutoReload() && configWatcher != null) {
+            configWatcher.close();
+            configWatcher = null;
+        }
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,220 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import java.util.Random;
+
+/**
+ * An immutable, compiled dice expression such as "4d6kh3+1d4!-2". Instances
+ * are produced by the DiceParser and may be rolled any number of times from
+ * any thread without further parsing.
+ */
+public final class DiceExpression {
+
+    /** Upper bound on how many times one die may explode. */
+    static final int MAX_EXPLOSIONS = 100;
+
+    private final String source;
+    private final Term[] terms;
+    private final int modifier;
+    private final int diceCount;
+    private final int keptCount;
+    private final int maxSides;
+
+    DiceExpression(String source, Term[] terms, int modifier) {
+        this.source = source;
+        this.terms = terms;
+        this.modifier = modifier;
+        int count = 0, kept = 0, sides = 0;
+        for (Term term : terms) {
+            count += term.count;
+            kept += term.keep;
+            sides = Math.max(sides, term.sides);
+        }
+        this.diceCount = count;
+        this.keptCount = kept;
+        this.maxSides = sides;
+    }
+
+    /**
+     * @return The total number of dice thrown, including dropped ones
+     */
+    public int getDiceCount() {
+        return diceCount;
+    }
+
+    /**
+     * @return The largest number of sides among all dice in the expression
+     */
+    public int getMaxSides() {
+        return maxSides;
+    }
+
+    /**
+     * @return The constant part of the expression, e.g. -2 for "1d20-2"
+     */
+    public int getModifier() {
+        return modifier;
+    }
+
+    /**
+     * @return The number of sides of the first dice term
+     */
+    public int getSides() {
+        return terms[0].sides;
+    }
+
+    /**
+     * @return Whether this is a single "NdS+M" pool without keep, explode or
+     *         reroll options, which may be rolled in bulk
+     */
+    public boolean isPlainPool() {
+        Term term = terms[0];
+        return terms.length == 1 && !term.negative && term.keep == term.count
+                && !term.explode && term.reroll == 0;
+    }
+
+    /**
+     * @return The expression as it was typed
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * @return The dice terms of this expression, in order
+     */
+    Term[] getTerms() {
+        return terms;
+    }
+
+    /**
+     * Roll every term of the expression.
+     *
+     * @param random The source of randomness
+     * @return The kept dice, their sides, and the total
+     */
+    public DiceRoll roll(Random random) {
+        int[] rolls = new int[keptCount];
+        int[] sides = new int[keptCount];
+        int total = modifier;
+        int pos = 0;
+        for (Term term : terms) {
+            int sum = term.roll(random, rolls, pos);
+            for (int i = 0; i < term.keep; ++i) {
+                sides[pos + i] = term.sides;
+            }
+            pos += term.keep;
+            total += term.negative ? -sum : sum;
+        }
+        return new DiceRoll(this, rolls, sides, modifier, total);
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    /**
+     * A single "NdS" term with its keep, explode and reroll options.
+     */
+    static final class Term {
+
+        final boolean negative;
+        final int count;
+        final int sides;
+        /** Number of dice kept; equal to count when nothing is dropped. */
+        final int keep;
+        /** Keep the highest (true) or the lowest (false) dice. */
+        final boolean keepHighest;
+        final boolean explode;
+        /** Reroll once any die at or below this value; 0 disables. */
+        final int reroll;
+
+        Term(boolean negative, int count, int sides, int keep,
+                boolean keepHighest, boolean explode, int reroll) {
+            this.negative = negative;
+            this.count = count;
+            this.sides = sides;
+            this.keep = keep;
+            this.keepHighest = keepHighest;
+            this.explode = explode;
+            this.reroll = reroll;
+        }
+
+        /**
+         * Roll a single die, applying the reroll and explode options.
+         */
+        int rollDie(Random random) {
+            int value = random.nextInt(sides) + 1;
+            if (value <= reroll) {
+                value = random.nextInt(sides) + 1;
+            }
+            if (explode) {
+                int face = value;
+                for (int i = 0; face == sides && i < MAX_EXPLOSIONS; ++i) {
+                    face = random.nextInt(sides) + 1;
+                    value += face;
+                }
+            }
+            return value;
+        }
+
+        /**
+         * Roll this term, writing the kept dice into the output array in the
+         * order they were thrown.
+         *
+         * @param random The source of randomness
+         * @param out The array to write kept dice into
+         * @param offset Where to start writing
+         * @return The sum of the kept dice
+         */
+        int roll(Random random, int[] out, int offset) {
+            if (keep == count) {
+                int sum = 0;
+                for (int i = 0; i < count; ++i) {
+                    out[offset + i] = rollDie(random);
+                    sum += out[offset + i];
+                }
+                return sum;
+            }
+            int[] all = new int[count];
+            for (int i = 0; i < count; ++i) {
+                all[i] = rollDie(random);
+            }
+            /* Drop the (count - keep) worst dice, marking them with zero */
+            for (int dropped = count - keep; dropped > 0; --dropped) {
+                int worst = -1;
+                for (int i = 0; i < count; ++i) {
+                    if (all[i] != 0 && (worst == -1
+                            || (keepHighest ? all[i] < all[worst] : all[i] > all[worst]))) {
+                        worst = i;
+                    }
+                }
+                all[worst] = 0;
+            }
+            int sum = 0;
+            for (int i = 0; i < count; ++i) {
+                if (all[i] != 0) {
+                    out[offset++] = all[i];
+                    sum += all[i];
+                }
+            }
+            return sum;
+        }
+
+    }
+
+}
@@ -0,0 +1,194 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses dice notation into compiled DiceExpressions, keeping the most
+ * recently used ones in a bounded cache so that repeated rolls skip parsing.
+ *
+ * Supported notation, case-insensitive, terms joined with '+' or '-':
+ * <ul>
+ * <li>"NdS" - roll N dice with S sides; N defaults to the configured count</li>
+ * <li>"N" - a constant, or N default dice when it is the first term</li>
+ * <li>"khK"/"kK", "klK" - keep the K highest/lowest dice</li>
+ * <li>"dhK", "dlK" - drop the K highest/lowest dice</li>
+ * <li>"!" - exploding dice; a maximum roll adds another die to its value</li>
+ * <li>"rK" - reroll once any die showing K or less</li>
+ * </ul>
+ */
+public class DiceParser {
+
+    /** Largest number accepted anywhere in an expression. */
+    private static final int MAX_NUMBER = 1000000;
+
+    private final int defaultCount;
+    private final int defaultSides;
+    private final LruCache<String, DiceExpression> cache;
+
+    /**
+     * @param defaultCount Dice count used when none is given
+     * @param defaultSides Dice sides used when none are given
+     * @param cacheSize Number of compiled expressions to keep
+     */
+    public DiceParser(int defaultCount, int defaultSides, int cacheSize) {
+        this.defaultCount = Math.max(1, defaultCount);
+        this.defaultSides = Math.max(2, defaultSides);
+        this.cache = new LruCache<>(cacheSize);
+    }
+
+    /**
+     * @return The expression used when the user gives no arguments
+     */
+    public DiceExpression getDefault() {
+        return parse(defaultCount + "d" + defaultSides);
+    }
+
+    /**
+     * Get the compiled form of an expression, parsing it only if it is not
+     * already cached.
+     *
+     * @param input The dice notation
+     * @return The compiled expression
+     * @throws IllegalArgumentException If the notation is invalid
+     */
+    public DiceExpression parse(String input) {
+        DiceExpression expression = cache.get(input);
+        if (expression == null) {
+            expression = compile(input);
+            cache.put(input, expression);
+        }
+        return expression;
+    }
+
+    /**
+     * Parse an expression without consulting the cache.
+     *
+     * @param input The dice notation
+     * @return The compiled expression
+     * @throws IllegalArgumentException If the notation is invalid
+     */
+    DiceExpression compile(String input) {
+        String s = input.toLowerCase();
+        List<DiceExpression.Term> terms = new ArrayList<>();
+        int modifier = 0;
+        int[] pos = {0};
+        boolean first = true;
+
+        while (pos[0] < s.length() || first) {
+            boolean negative = false;
+            if (pos[0] < s.length() && (s.charAt(pos[0]) == '+' || s.charAt(pos[0]) == '-')) {
+                negative = s.charAt(pos[0]) == '-';
+                pos[0]++;
+            } else if (!first) {
+                throw new IllegalArgumentException("Expected '+' or '-' at position " + (pos[0] + 1));
+            }
+
+            int count = readNumber(s, pos, -1);
+            if (pos[0] < s.length() && s.charAt(pos[0]) == 'd') {
+                pos[0]++;
+                int sides = readNumber(s, pos, -1);
+                if (sides < 0) {
+                    throw new IllegalArgumentException("Missing number of sides in '" + input + "'");
+                }
+                terms.add(readOptions(s, pos, negative,
+                        Math.max(1, count < 0 ? defaultCount : count), Math.max(2, sides)));
+            } else if (count < 0) {
+                throw new IllegalArgumentException("Expected a number at position " + (pos[0] + 1));
+            } else if (first && !negative) {
+                /* A leading bare number is a count of default dice, e.g. "3+2" */
+                terms.add(readOptions(s, pos, false, Math.max(1, count), defaultSides));
+            } else {
+                modifier += negative ? -count : count;
+            }
+            first = false;
+        }
+        if (terms.isEmpty()) {
+            throw new IllegalArgumentException("No dice in '" + input + "'");
+        }
+        return new DiceExpression(input, terms.toArray(new DiceExpression.Term[0]), modifier);
+    }
+
+    /**
+     * Read the keep/drop, explode and reroll options following a dice term.
+     */
+    private DiceExpression.Term readOptions(String s, int[] pos, boolean negative, int count, int sides) {
+        int keep = count;
+        boolean keepHighest = true;
+        boolean explode = false;
+        int reroll = 0;
+
+        while (pos[0] < s.length()) {
+            char c = s.charAt(pos[0]);
+            if (c == '!') {
+                pos[0]++;
+                explode = true;
+            } else if (c == 'r') {
+                pos[0]++;
+                reroll = readNumber(s, pos, 1);
+                if (reroll >= sides) {
+                    throw new IllegalArgumentException("Cannot reroll every face of a d" + sides);
+                }
+            } else if (c == 'k' || c == 'd') {
+                pos[0]++;
+                boolean high = true;
+                if (pos[0] < s.length() && (s.charAt(pos[0]) == 'h' || s.charAt(pos[0]) == 'l')) {
+                    high = s.charAt(pos[0]) == 'h';
+                    pos[0]++;
+                } else if (c == 'd') {
+                    throw new IllegalArgumentException("Use 'dh' or 'dl' to drop dice");
+                }
+                int n = readNumber(s, pos, 1);
+                if ((c == 'k' && n < 1) || n > count || (c == 'd' && n == count)) {
+                    throw new IllegalArgumentException("Cannot keep or drop " + n + " of " + count + " dice");
+                }
+                if (c == 'k') {
+                    keep = n;
+                    keepHighest = high;
+                } else {
+                    keep = count - n;
+                    keepHighest = !high;
+                }
+            } else {
+                break;
+            }
+        }
+        return new DiceExpression.Term(negative, count, sides, keep, keepHighest, explode, reroll);
+    }
+
+    /**
+     * Read a decimal number, advancing the position past it.
+     *
+     * @param s The lower-cased input
+     * @param pos Single-element position holder
+     * @param def Value to return if there are no digits
+     * @return The number, or the default
+     */
+    private static int readNumber(String s, int[] pos, int def) {
+        int start = pos[0];
+        int value = 0;
+        while (pos[0] < s.length() && s.charAt(pos[0]) >= '0' && s.charAt(pos[0]) <= '9') {
+            value = value * 10 + (s.charAt(pos[0]) - '0');
+            if (value > MAX_NUMBER) {
+                throw new IllegalArgumentException("Number too large in '" + s + "'");
+            }
+            pos[0]++;
+        }
+        return pos[0] == start ? def : value;
+    }
+
+}
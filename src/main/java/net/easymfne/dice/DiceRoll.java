@@ -0,0 +1,104 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * The outcome of rolling a DiceExpression once.
+ */
+public final class DiceRoll {
+
+    private final DiceExpression expression;
+    private final int[] rolls;
+    private final int[] sides;
+    private final int modifier;
+    private final int total;
+
+    DiceRoll(DiceExpression expression, int[] rolls, int[] sides, int modifier, int total) {
+        this.expression = expression;
+        this.rolls = rolls;
+        this.sides = sides;
+        this.modifier = modifier;
+        this.total = total;
+    }
+
+    /**
+     * @return The expression that was rolled
+     */
+    public DiceExpression getExpression() {
+        return expression;
+    }
+
+    /**
+     * @return The number of kept dice
+     */
+    public int getCount() {
+        return rolls.length;
+    }
+
+    /**
+     * @param i Index of a kept die
+     * @return The value it showed
+     */
+    public int getRoll(int i) {
+        return rolls[i];
+    }
+
+    /**
+     * @return A copy of the kept dice, in the order they were thrown
+     */
+    public int[] getRolls() {
+        return rolls.clone();
+    }
+
+    /**
+     * @return The kept dice as a stream, without copying
+     */
+    public IntStream stream() {
+        return Arrays.stream(rolls);
+    }
+
+    /**
+     * @param i Index of a kept die
+     * @return The number of sides that die had
+     */
+    public int getSides(int i) {
+        return sides[i];
+    }
+
+    /**
+     * @return The number of sides of the first dice term
+     */
+    public int getSides() {
+        return expression.getSides();
+    }
+
+    /**
+     * @return The constant modifier of the expression
+     */
+    public int getModifier() {
+        return modifier;
+    }
+
+    /**
+     * @return The sum of all kept dice plus the modifier
+     */
+    public int getTotal() {
+        return total;
+    }
+
+}
@@ -15,6 +15,11 @@
  */
 package net.easymfne.dice;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.IntStream;
+
 import org.bukkit.event.Event;
 import org.bukkit.event.HandlerList;
 import org.jetbrains.annotations.NotNull;
@@ -23,24 +28,126 @@ import org.jetbrains.annotations.NotNull;
  * Implements custom DiceRolled event, so other plugins can possibly listen
  * to the result of this plugin's dice throw.
  *
+ * A batch of expressions rolled with one command fires a single event. The
+ * per-roll getters then describe the first expression; {@link #getBatch()}
+ * and {@link #getLabels()} give all of them.
+ *
  * @author Martin Ambrus
  */
 public final class DiceRolled extends Event {
 
 	private static final HandlerList handlers = new HandlerList();
     private final String message;
-    private final Integer[] numbers;
+    private final DiceRoll roll;
+    private final List<DiceRoll> batch;
+    private final List<String> labels;
+    private Integer[] numbers;
 
-    public DiceRolled(String event, Integer[] rolled) {
+    public DiceRolled(String event, DiceRoll rolled) {
         message = event;
-        numbers = rolled;
+        roll = rolled;
+        batch = Collections.singletonList(rolled);
+        labels = Collections.singletonList(null);
+    }
+
+    /**
+     * @param event The combined message
+     * @param rolled The rolls, in the order they were given
+     * @param labels The label of each roll, or null where it has none
+     */
+    public DiceRolled(String event, DiceRoll[] rolled, String[] labels) {
+        message = event;
+        roll = rolled[0];
+        batch = Collections.unmodifiableList(Arrays.asList(rolled.clone()));
+        this.labels = Collections.unmodifiableList(Arrays.asList(labels.clone()));
+    }
+
+    /**
+     * @return Whether any listener is registered, so that callers can skip
+     *         building the event
+     */
+    static boolean hasListeners() {
+        return handlers.getRegisteredListeners().length > 0;
     }
 
     public String getMessage() {
         return message;
     }
 
+    /**
+     * @return A copy of the kept dice, in the order they were thrown
+     */
+    public int[] getRolls() {
+        return roll.getRolls();
+    }
+
+    /**
+     * @return The kept dice as a stream
+     */
+    public IntStream rolls() {
+        return roll.stream();
+    }
+
+    /**
+     * @return The number of kept dice
+     */
+    public int getCount() {
+        return roll.getCount();
+    }
+
+    /**
+     * @return The number of sides of the first dice term
+     */
+    public int getSides() {
+        return roll.getSides();
+    }
+
+    /**
+     * @return The constant modifier of the expression
+     */
+    public int getModifier() {
+        return roll.getModifier();
+    }
+
+    /**
+     * @return The sum of the kept dice plus the modifier
+     */
+    public int getTotal() {
+        return roll.getTotal();
+    }
+
+    /**
+     * @return The expression as it was typed
+     */
+    public String getExpression() {
+        return roll.getExpression().getSource();
+    }
+
+    /**
+     * @return Every roll of the command, in order; a single roll unless
+     *         several expressions were rolled at once
+     */
+    public List<DiceRoll> getBatch() {
+        return batch;
+    }
+
+    /**
+     * @return The label of each roll in {@link #getBatch()}, or null where
+     *         a roll has none
+     */
+    public List<String> getLabels() {
+        return labels;
+    }
+
+    /**
+     * @return The kept dice, boxed
+     * @deprecated Use {@link #getRolls()} or {@link #rolls()} instead
+     */
+    @Deprecated
     public Integer[] getNumbersRolled() {
+        if (numbers == null) {
+            numbers = roll.stream().boxed().toArray(Integer[]::new);
+        }
     	return numbers;
     }
 
@@ -1,117 +1,257 @@
-package net.easymfne.dice;
-
-import br.com.devpaulo.legendchat.api.Legendchat;
-import br.com.devpaulo.legendchat.channels.types.Channel;
-import github.scarsz.discordsrv.DiscordSRV;
-import github.scarsz.discordsrv.api.ListenerPriority;
-import github.scarsz.discordsrv.api.Subscribe;
-import github.scarsz.discordsrv.api.events.DiscordGuildMessagePreProcessEvent;
-import github.scarsz.discordsrv.dependencies.jda.api.entities.Emote;
-import java.util.Random;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import org.bukkit.Bukkit;
-import org.bukkit.ChatColor;
-
-public class DiscordChatListener {
-
-    private final Dice plugin;
-    Emote errorEmote = null;
-    private final Random random = new Random();
-	private final static Pattern diceParts = Pattern.compile("^(([0-9]+)?d)?([0-9]+)((\\+|\\-)([0-9]+))?$");
-
-    public DiscordChatListener(Dice plugin) {
-        this.plugin = plugin;
-    }
-
-    @Subscribe(priority = ListenerPriority.LOW)
-    public void onDiscordGuildMessagePreProcessEvent(DiscordGuildMessagePreProcessEvent event) {
-        final String msg = event.getMessage().getContentRaw();
-        if (msg.startsWith("/roll") || msg.startsWith("!roll")) {
-            event.setCancelled(true);
-            int i = msg.indexOf(' ');
-            String args[] = i == -1 ? new String[0] : msg.substring(i + 1).split(" ");
-
-			int count = plugin.getPluginConfig().getDefaultCount();
-			int sides = plugin.getPluginConfig().getDefaultSides();
-			int mod = 0;
-
-			if (args.length > 0) {
-				// parse command:
-				Matcher m = diceParts.matcher(args[0]);
-				if(m.find()) {
-					if (m.group(1) == null) {
-						// did not find a 'd' in the argument, so group 3 is the count
-						count = Integer.parseInt(m.group(3));
-					} else {
-						sides = Integer.parseInt(m.group(3));
-						if (m.group(2) != null) {
-							count = Integer.parseInt(m.group(2));
-						}
-					}
-					if (m.group(6) != null) {
-						mod = Integer.parseInt(m.group(6));
-						if (m.group(5).charAt(0) == '-') {
-							mod *= -1;
-						}
-					}
-				}
-			}
-	
-            /* Check the loaded or parsed values against the defined maximums. */
-            if (count > plugin.getPluginConfig().getMaximumCount()
-                    || sides > plugin.getPluginConfig().getMaximumSides()) {
-                if (errorEmote == null) {
-                    errorEmote = event.getGuild().getEmotesByName("spikewhoops", true).get(0);
-                }
-                event.getMessage().addReaction("❗").queue();
-                event.getMessage().addReaction(errorEmote).queue();
-                return;
-            }
-
-            Integer[] result = new Integer[count];
-            for (i = 0; i < count; ++i) {
-                result[i] = random.nextInt(sides) + 1;
-            }
-
-            String nick = event.getGuild().getMember(event.getAuthor()).getNickname();
-            if(nick == null) {
-                nick = event.getAuthor().getName();
-            }
-            String finalOut = plugin.rollCommand.formatString(nick, result, sides, mod);
-
-            // send out a custom event
-            plugin.getServer().getScheduler().runTask(plugin,
-                    () -> Bukkit.getServer().getPluginManager().callEvent(new DiceRolled(finalOut, result)));
-
-            // broadcast to linked channel
-            String channelName = DiscordSRV.getPlugin().getDestinationGameChannelNameForTextChannel(event.getChannel());
-            if (plugin.getPluginConfig().useLegendChat) {
-                Channel chatChannel = getChannelByCaseInsensitiveName(channelName);
-                if (chatChannel == null) {
-                    return; // no suitable channel found
-                }
-                ChatColor color2 = ChatColor.WHITE;
-
-                final String colorStr = chatChannel.getStringColor().toUpperCase();
-                if (plugin.rollCommand.colors.contains(colorStr)) {
-                    color2 = ChatColor.valueOf(colorStr);
-                }
-
-                chatChannel.sendMessage(finalOut.replace("{CHANNEL}", color2.toString()));
-            } else {
-                Bukkit.broadcastMessage(finalOut.replace("{CHANNEL}", ""));
-            }
-            event.getChannel().sendMessage(finalOut.replace("{CHANNEL}", "").replaceAll("\u00a7[0-9a-fA-F]", "")).queue();
-        }
-    }
-
-    private static Channel getChannelByCaseInsensitiveName(String name) {
-        for (Channel channel : Legendchat.getChannelManager().getChannels()) {
-            if (channel.getName().equalsIgnoreCase(name)) {
-                return channel;
-            }
-        }
-        return null;
-    }
-}
+package net.easymfne.dice;
+
+import github.scarsz.discordsrv.DiscordSRV;
+import github.scarsz.discordsrv.api.ListenerPriority;
+import github.scarsz.discordsrv.api.Subscribe;
+import github.scarsz.discordsrv.api.events.DiscordGuildMessagePreProcessEvent;
+import github.scarsz.discordsrv.dependencies.jda.api.entities.Emote;
+import github.scarsz.discordsrv.dependencies.jda.api.entities.TextChannel;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.bukkit.Bukkit;
+
+/**
+ * Handles "/roll" and "!roll" messages from Discord. Parsing and rolling run
+ * on a small worker pool; finished rolls are queued and delivered in-game in
+ * one batch per tick on the main thread. Replies to Discord are coalesced per
+ * channel by the DiscordOutbox.
+ */
+public class DiscordChatListener {
+
+    private static final long CLOSE_TIMEOUT = 5L;
+
+    private final Dice plugin;
+    volatile Emote errorEmote = null;
+    private final ExecutorService workers;
+    private final Queue<PendingRoll> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final DiscordOutbox outbox;
+
+    /**
+     * A finished roll waiting to be delivered on the main thread.
+     */
+    private static final class PendingRoll {
+
+        final Config config;
+        final String message;
+        final String reply;
+        final DiceRoll result;
+        final String channelName;
+        final TextChannel replyTo;
+
+        PendingRoll(Config config, MessageTemplate.Rendered rendered, DiceRoll result, String channelName,
+                TextChannel replyTo) {
+            this.config = config;
+            this.message = rendered.getGame();
+            this.reply = rendered.getDiscord();
+            this.result = result;
+            this.channelName = channelName;
+            this.replyTo = replyTo;
+        }
+    }
+
+    public DiscordChatListener(Dice plugin) {
+        this.plugin = plugin;
+        final AtomicInteger threadId = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(
+                Math.max(1, plugin.getPluginConfig().getDiscordWorkers()), r -> {
+                    Thread t = new Thread(r, "Dice-Discord-" + threadId.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        this.outbox = new DiscordOutbox(plugin.getPluginConfig().getDiscordCoalesceMillis());
+    }
+
+    /**
+     * @return The outbound message aggregator
+     */
+    public DiscordOutbox getOutbox() {
+        return outbox;
+    }
+
+    /**
+     * Stop accepting Discord rolls, wait for the workers to finish the rolls
+     * they are handling, deliver whatever is still queued and flush the
+     * outbox. Must be called on the main thread, while the configuration and
+     * the command handler are still in place.
+     */
+    public void close() {
+        workers.shutdown();
+        awaitWorkers();
+        finish();
+    }
+
+    /**
+     * Stop accepting Discord rolls without blocking the calling thread. The
+     * workers are waited for on a background thread, then the rolls they
+     * finished are delivered and the outbox flushed on the main thread. Used
+     * when a reload replaces this listener with a new one.
+     */
+    public void closeLater() {
+        workers.shutdown();
+        final Scheduler scheduler = plugin.getTaskScheduler();
+        scheduler.runAsync(() -> {
+            awaitWorkers();
+            try {
+                scheduler.runGlobal(this::finish);
+            } catch (RuntimeException ex) {
+                // plugin was disabled meanwhile; at least send the replies
+                outbox.close();
+            }
+        });
+    }
+
+    private void awaitWorkers() {
+        try {
+            if (!workers.awaitTermination(CLOSE_TIMEOUT, TimeUnit.SECONDS)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException ex) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void finish() {
+        drain();
+        outbox.close();
+    }
+
+    @Subscribe(priority = ListenerPriority.LOW)
+    public void onDiscordGuildMessagePreProcessEvent(DiscordGuildMessagePreProcessEvent event) {
+        final String msg = event.getMessage().getContentRaw();
+        if (msg.startsWith("/roll") || msg.startsWith("!roll")) {
+            event.setCancelled(true);
+            try {
+                workers.execute(() -> process(event, msg));
+            } catch (RejectedExecutionException ex) {
+                // plugin is shutting down
+            }
+        }
+    }
+
+    /**
+     * Parse and roll a Discord message on a worker thread, then queue the
+     * result for delivery on the main thread.
+     */
+    private void process(DiscordGuildMessagePreProcessEvent event, String msg) {
+        int i = msg.indexOf(' ');
+        String args[] = i == -1 ? new String[0] : msg.substring(i + 1).split(" ");
+
+        final Config config = plugin.getPluginConfig();
+        if (plugin.getRateLimiter().tryAcquire(event.getAuthor().getIdLong(),
+                config.getDiscordCooldownTier(),
+                config.getCooldownPenalty()) > 0) {
+            plugin.getMetrics().countRejection(RollMetrics.Source.DISCORD);
+            outbox.react(event.getMessage(), "⏳", null);
+            return;
+        }
+
+        RollMetrics metrics = plugin.getMetrics();
+        long start = System.nanoTime();
+        DiceExpression expression;
+        try {
+            expression = args.length > 0
+                    ? config.getParser().parse(args[0])
+                    : config.getParser().getDefault();
+        } catch (IllegalArgumentException ex) {
+            expression = null;
+        }
+        start = metrics.time(RollMetrics.Stage.PARSE, start);
+
+        /* Check the parsed values against the defined maximums. */
+        if (expression == null
+                || expression.getDiceCount() > config.getMaximumCount()
+                || expression.getMaxSides() > config.getMaximumSides()) {
+            metrics.countError();
+            if (errorEmote == null) {
+                List<Emote> emotes = event.getGuild().getEmotesByName("spikewhoops", true);
+                errorEmote = emotes.isEmpty() ? null : emotes.get(0);
+            }
+            outbox.react(event.getMessage(), "❗", errorEmote);
+            return;
+        }
+
+        DiceRoll result = expression.roll(config.getRandom().current());
+        RollJournal journal = plugin.getJournal();
+        if (journal != null) {
+            journal.append(event.getAuthor().getIdLong(), result);
+        }
+        start = metrics.time(RollMetrics.Stage.ROLL, start);
+
+        String nick = event.getGuild().getMember(event.getAuthor()).getNickname();
+        if(nick == null) {
+            nick = event.getAuthor().getName();
+        }
+        MessageTemplate.Rendered finalOut = plugin.rollCommand.formatString(config, nick, result);
+        metrics.time(RollMetrics.Stage.FORMAT, start);
+        if (finalOut == null) {
+            return;
+        }
+
+        if (AsyncDiceRolled.hasListeners()) {
+            Bukkit.getServer().getPluginManager().callEvent(new AsyncDiceRolled(AsyncDiceRolled.Source.DISCORD,
+                    new UUID(0, event.getAuthor().getIdLong()), nick, result, null));
+        }
+
+        /* The linked game channel only matters when LegendChat delivers the roll */
+        String channelName = config.useLegendChat
+                ? DiscordSRV.getPlugin().getDestinationGameChannelNameForTextChannel(event.getChannel())
+                : null;
+        pending.add(new PendingRoll(config, finalOut, result, channelName, event.getChannel()));
+        if (drainScheduled.compareAndSet(false, true)) {
+            plugin.getTaskScheduler().runGlobal(this::drain);
+        }
+    }
+
+    /**
+     * Deliver every queued roll on the main thread: fire the events, then
+     * send the in-game messages and the Discord replies.
+     */
+    private void drain() {
+        drainScheduled.set(false);
+        RollMetrics metrics = plugin.getMetrics();
+        PendingRoll roll;
+        while ((roll = pending.poll()) != null) {
+            long start = System.nanoTime();
+            // send out a custom event
+            if (DiceRolled.hasListeners()) {
+                Bukkit.getServer().getPluginManager().callEvent(new DiceRolled(roll.message, roll.result));
+            }
+            start = metrics.time(RollMetrics.Stage.EVENT, start);
+            boolean delivered = deliver(roll);
+            metrics.time(RollMetrics.Stage.BROADCAST, start);
+            metrics.countRoll(RollMetrics.Source.DISCORD);
+            if (delivered) {
+                outbox.send(roll.replyTo, roll.reply);
+            }
+        }
+    }
+
+    /**
+     * Deliver a roll in-game, as configured when it was rolled.
+     *
+     * @return Whether it was delivered, and so should be replied to
+     */
+    private boolean deliver(PendingRoll roll) {
+        // broadcast to linked channel
+        if (roll.config.useLegendChat) {
+            ChannelIndex.Entry chatChannel = plugin.getChannelIndex().get(roll.channelName);
+            if (chatChannel == null) {
+                return false; // no suitable channel found
+            }
+            chatChannel.getChannel().sendMessage(roll.message.replace("{CHANNEL}", chatChannel.getColor()));
+        } else {
+            plugin.getMetrics().recordRecipients(Bukkit.broadcast(RollFormatter.toComponent(roll.message)));
+        }
+        return true;
+    }
+}
@@ -0,0 +1,213 @@
+package net.easymfne.dice;
+
+import github.scarsz.discordsrv.dependencies.jda.api.entities.Emote;
+import github.scarsz.discordsrv.dependencies.jda.api.entities.Message;
+import github.scarsz.discordsrv.dependencies.jda.api.entities.TextChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces outbound Discord messages per text channel. Results produced
+ * within a short window are merged into one message of at most 2000
+ * characters, and a reaction is added to a message at most once per window,
+ * which keeps busy channels under the JDA rate limits.
+ */
+public class DiscordOutbox {
+
+    /** Discord's maximum message length. */
+    static final int MAX_LENGTH = 2000;
+
+    private final long windowMillis;
+    private final ScheduledExecutorService flusher;
+    private final ConcurrentHashMap<Long, Batch> batches = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Long> lastReaction = new ConcurrentHashMap<>();
+    private final AtomicLong nextPrune = new AtomicLong();
+
+    /* Metrics */
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder flushNanos = new LongAdder();
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+    private final LongAdder reactionsSuppressed = new LongAdder();
+
+    /**
+     * Pending text for one channel.
+     */
+    private final class Batch {
+
+        final TextChannel channel;
+        final StringBuilder text = new StringBuilder();
+        int lines;
+        long firstQueued;
+        boolean scheduled;
+
+        Batch(TextChannel channel) {
+            this.channel = channel;
+        }
+
+        /** Send whatever is pending. Must hold the batch lock. */
+        void flush() {
+            if (lines == 0) {
+                return;
+            }
+            channel.sendMessage(text.toString()).queue();
+            queueDepth.addAndGet(-lines);
+            long latency = System.nanoTime() - firstQueued;
+            flushes.increment();
+            flushNanos.add(latency);
+            long max;
+            while (latency > (max = maxFlushNanos.get()) && !maxFlushNanos.compareAndSet(max, latency)) {
+                // retry
+            }
+            text.setLength(0);
+            lines = 0;
+        }
+    }
+
+    /**
+     * @param windowMillis How long to collect results before sending them
+     */
+    public DiscordOutbox(long windowMillis) {
+        this.windowMillis = Math.max(0, windowMillis);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Dice-Discord-Outbox");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Queue a line of text for a channel. It is sent together with any other
+     * lines queued for that channel within the window.
+     *
+     * @param channel The channel to send to
+     * @param line The text to send
+     */
+    public void send(TextChannel channel, String line) {
+        if (line.length() > MAX_LENGTH) {
+            line = line.substring(0, MAX_LENGTH);
+        }
+        Batch batch = batches.computeIfAbsent(channel.getIdLong(), id -> new Batch(channel));
+        synchronized (batch) {
+            if (batch.lines > 0 && batch.text.length() + 1 + line.length() > MAX_LENGTH) {
+                batch.flush();
+            }
+            if (batch.lines > 0) {
+                batch.text.append('\n');
+            } else {
+                batch.firstQueued = System.nanoTime();
+            }
+            batch.text.append(line);
+            batch.lines++;
+            queueDepth.incrementAndGet();
+            if (windowMillis == 0) {
+                batch.flush();
+            } else if (!batch.scheduled) {
+                batch.scheduled = true;
+                try {
+                    flusher.schedule(() -> flush(batch), windowMillis, TimeUnit.MILLISECONDS);
+                } catch (RuntimeException ex) {
+                    // shutting down
+                    batch.flush();
+                }
+            }
+        }
+    }
+
+    /**
+     * React to a message, unless it was already given a reaction within the
+     * window.
+     *
+     * @param message The message to react to
+     * @param unicode A unicode emoji to add
+     * @param emote A custom emote to add as well, or null
+     */
+    public void react(Message message, String unicode, Emote emote) {
+        long now = System.currentTimeMillis();
+        long window = Math.max(windowMillis, 1000);
+        Long last = lastReaction.put(message.getIdLong(), now);
+        pruneReactions(now, window);
+        if (last != null && now - last < window) {
+            reactionsSuppressed.increment();
+            return;
+        }
+        message.addReaction(unicode).queue();
+        if (emote != null) {
+            message.addReaction(emote).queue();
+        }
+    }
+
+    /**
+     * Forget reactions older than the window, at most once per window, so
+     * that the map stays small even when no replies are being flushed.
+     */
+    private void pruneReactions(long now, long window) {
+        long next = nextPrune.get();
+        if (now < next || !nextPrune.compareAndSet(next, now + window)) {
+            return;
+        }
+        long cutoff = now - window;
+        lastReaction.values().removeIf(time -> time < cutoff);
+    }
+
+    private void flush(Batch batch) {
+        synchronized (batch) {
+            batch.scheduled = false;
+            batch.flush();
+        }
+    }
+
+    /**
+     * Send everything still pending and stop the flushing thread.
+     */
+    public void close() {
+        flusher.shutdownNow();
+        for (Batch batch : batches.values()) {
+            synchronized (batch) {
+                batch.flush();
+            }
+        }
+    }
+
+    /**
+     * @return Lines queued but not yet sent
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * @return Number of messages sent
+     */
+    public long getFlushCount() {
+        return flushes.sum();
+    }
+
+    /**
+     * @return Mean time in microseconds from the first queued line to sending
+     */
+    public long getMeanFlushLatencyMicros() {
+        long n = flushes.sum();
+        return n == 0 ? 0 : flushNanos.sum() / n / 1000;
+    }
+
+    /**
+     * @return Longest time in microseconds from the first queued line to sending
+     */
+    public long getMaxFlushLatencyMicros() {
+        return maxFlushNanos.get() / 1000;
+    }
+
+    /**
+     * @return Number of reactions skipped as duplicates
+     */
+    public long getSuppressedReactions() {
+        return reactionsSuppressed.sum();
+    }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import java.util.Arrays;
+
+/**
+ * An immutable probability distribution over a contiguous range of integer
+ * totals. Distributions are combined by convolution, so the distribution of
+ * any dice expression can be computed exactly (to double precision) without
+ * sampling.
+ */
+public final class Distribution {
+
+    /** A point mass at zero, the identity for convolution. */
+    static final Distribution ZERO = new Distribution(0, new double[] {1});
+
+    private final int min;
+    private final double[] p;
+
+    /**
+     * @param min The value of the first entry
+     * @param p The probability of each value from min upwards
+     */
+    Distribution(int min, double[] p) {
+        this.min = min;
+        this.p = p;
+    }
+
+    /**
+     * @return A uniform distribution over 1 to sides
+     */
+    static Distribution uniform(int sides) {
+        double[] p = new double[sides];
+        Arrays.fill(p, 1.0 / sides);
+        return new Distribution(1, p);
+    }
+
+    /**
+     * @return The smallest possible value
+     */
+    public int getMin() {
+        return min;
+    }
+
+    /**
+     * @return The largest possible value
+     */
+    public int getMax() {
+        return min + p.length - 1;
+    }
+
+    /**
+     * @param value A total
+     * @return The probability of exactly that total
+     */
+    public double probability(int value) {
+        int i = value - min;
+        return i < 0 || i >= p.length ? 0 : p[i];
+    }
+
+    /**
+     * @param value A total
+     * @return The probability of a total at or below the value
+     */
+    public double atMost(int value) {
+        double sum = 0;
+        for (int i = 0, end = Math.min(p.length - 1, value - min); i <= end; ++i) {
+            sum += p[i];
+        }
+        return Math.min(1, sum);
+    }
+
+    /**
+     * @param value A total
+     * @return The probability of a total at or above the value
+     */
+    public double atLeast(int value) {
+        double sum = 0;
+        for (int i = p.length - 1, end = Math.max(0, value - min); i >= end; --i) {
+            sum += p[i];
+        }
+        return Math.min(1, sum);
+    }
+
+    /**
+     * @return The expected total
+     */
+    public double mean() {
+        double sum = 0;
+        for (int i = 0; i < p.length; ++i) {
+            sum += p[i] * (min + i);
+        }
+        return sum;
+    }
+
+    /**
+     * @return The variance of the total
+     */
+    public double variance() {
+        double mean = mean();
+        double sum = 0;
+        for (int i = 0; i < p.length; ++i) {
+            double d = min + i - mean;
+            sum += p[i] * d * d;
+        }
+        return sum;
+    }
+
+    /**
+     * @return The distribution of the sum of one draw from each
+     */
+    Distribution convolve(Distribution other) {
+        double[] a = p, b = other.p;
+        double[] out = new double[a.length + b.length - 1];
+        for (int i = 0; i < a.length; ++i) {
+            double pa = a[i];
+            if (pa == 0) {
+                continue;
+            }
+            for (int j = 0; j < b.length; ++j) {
+                out[i + j] += pa * b[j];
+            }
+        }
+        return new Distribution(min + other.min, out);
+    }
+
+    /**
+     * Sum of n independent draws, using exponentiation by squaring so that
+     * only O(log n) convolutions are needed.
+     *
+     * @param n Number of draws
+     * @return The distribution of the sum
+     */
+    Distribution power(int n) {
+        Distribution result = ZERO;
+        Distribution square = this;
+        while (n > 0) {
+            if ((n & 1) != 0) {
+                result = result.convolve(square);
+            }
+            n >>= 1;
+            if (n > 0) {
+                square = square.convolve(square);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The distribution of the negated value
+     */
+    Distribution negate() {
+        double[] out = new double[p.length];
+        for (int i = 0; i < p.length; ++i) {
+            out[p.length - 1 - i] = p[i];
+        }
+        return new Distribution(-getMax(), out);
+    }
+
+    /**
+     * @return The distribution moved by a constant
+     */
+    Distribution shift(int offset) {
+        return offset == 0 ? this : new Distribution(min + offset, p);
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small, bounded, least-recently-used cache. All access is synchronized, as
+ * the cache is shared between the main thread and the Discord thread.
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public class LruCache<K, V> {
+
+    private final LinkedHashMap<K, V> map;
+
+    /**
+     * Create a new cache holding at most the given number of entries.
+     *
+     * @param capacity Maximum number of entries before the eldest is evicted
+     */
+    public LruCache(final int capacity) {
+        this.map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @param key The key to look up
+     * @return The cached value, or null if absent
+     */
+    public synchronized V get(K key) {
+        return map.get(key);
+    }
+
+    /**
+     * Store a value, possibly evicting the least recently used entry.
+     *
+     * @param key The key
+     * @param value The value
+     */
+    public synchronized void put(K key, V value) {
+        map.put(key, value);
+    }
+
+    /**
+     * Remove every entry from the cache.
+     */
+    public synchronized void clear() {
+        map.clear();
+    }
+
+    /**
+     * @return The number of entries currently cached
+     */
+    public synchronized int size() {
+        return map.size();
+    }
+
+}
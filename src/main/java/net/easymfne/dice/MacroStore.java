@@ -0,0 +1,305 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+/**
+ * Named roll macros, saved per player. A player's macros are read from their
+ * file off the main thread while they log in, and kept in memory until the
+ * player leaves. Each macro keeps its compiled expression, so running one
+ * involves no parsing; it is only recompiled if the parser is replaced by a
+ * reload. Changes are written back on a background thread, one file per
+ * player; until a write has finished, loading uses the queued copy instead
+ * of the file, so a player who rejoins quickly never sees stale macros.
+ */
+public class MacroStore implements Listener {
+
+    /** Most macros a player may save. */
+    public static final int MAXIMUM = 32;
+
+    private static final int MAGIC = 0x44524D31;
+    private static final String SUFFIX = ".dat";
+
+    /**
+     * A saved expression and its compiled form.
+     */
+    public static final class Macro {
+
+        private final String name;
+        private final String expression;
+        private volatile DiceParser parser;
+        private volatile DiceExpression compiled;
+
+        Macro(String name, String expression) {
+            this.name = name;
+            this.expression = expression;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getExpression() {
+            return expression;
+        }
+
+        /**
+         * @param parser The parser currently in use
+         * @return The compiled expression
+         * @throws IllegalArgumentException If the expression no longer parses
+         */
+        public DiceExpression compile(DiceParser parser) {
+            DiceExpression result = compiled;
+            if (result == null || this.parser != parser) {
+                result = parser.parse(expression);
+                compiled = result;
+                this.parser = parser;
+            }
+            return result;
+        }
+    }
+
+    private final File directory;
+    private final Logger logger;
+    private final Map<UUID, Map<String, Macro>> players = new ConcurrentHashMap<>();
+    /** The latest snapshot queued for writing per player, until it is written. */
+    private final Map<UUID, Macro[]> unwritten = new ConcurrentHashMap<>();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Dice-Macros");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param directory Where the macro files are kept
+     * @param logger Logger for write failures
+     */
+    public MacroStore(File directory, Logger logger) {
+        this.directory = directory;
+        this.logger = logger;
+    }
+
+    /**
+     * @param player The player's UUID
+     * @param name The macro name, in any case
+     * @return The macro, or null if the player has none by that name
+     */
+    public Macro get(UUID player, String name) {
+        Map<String, Macro> macros = macros(player);
+        synchronized (macros) {
+            return macros.get(name.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * @param player The player's UUID
+     * @return A copy of the player's macros, in the order they were saved
+     */
+    public Map<String, Macro> list(UUID player) {
+        Map<String, Macro> macros = macros(player);
+        synchronized (macros) {
+            return new LinkedHashMap<>(macros);
+        }
+    }
+
+    /**
+     * Save or replace a macro and write the player's macros back to disk.
+     *
+     * @param player The player's UUID
+     * @param macro The macro, already compiled by the caller
+     * @return False if the player already has the maximum number of macros
+     */
+    public boolean put(UUID player, Macro macro) {
+        Map<String, Macro> macros = macros(player);
+        synchronized (macros) {
+            String key = macro.getName().toLowerCase(Locale.ROOT);
+            if (!macros.containsKey(key) && macros.size() >= MAXIMUM) {
+                return false;
+            }
+            macros.put(key, macro);
+            save(player, macros);
+        }
+        return true;
+    }
+
+    /**
+     * Delete a macro and write the player's macros back to disk.
+     *
+     * @param player The player's UUID
+     * @param name The macro name, in any case
+     * @return Whether there was such a macro
+     */
+    public boolean remove(UUID player, String name) {
+        Map<String, Macro> macros = macros(player);
+        synchronized (macros) {
+            if (macros.remove(name.toLowerCase(Locale.ROOT)) == null) {
+                return false;
+            }
+            save(player, macros);
+        }
+        return true;
+    }
+
+    /**
+     * Finish any pending writes and stop the writer thread.
+     */
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Read a player's macros ahead of time on the writer thread, e.g. for
+     * players who were already online when the plugin was enabled.
+     *
+     * @param player The player's UUID
+     */
+    public void preload(final UUID player) {
+        try {
+            writer.execute(() -> macros(player));
+        } catch (RejectedExecutionException ex) {
+            // shutting down
+        }
+    }
+
+    /**
+     * Read the macros of a player who is logging in, on the login thread.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onAsyncPlayerPreLogin(AsyncPlayerPreLoginEvent event) {
+        if (event.getLoginResult() == AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            macros(event.getUniqueId());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        players.remove(event.getPlayer().getUniqueId());
+    }
+
+    /**
+     * Get a player's macros, reading them the first time. This only happens
+     * here on the main thread if they were not loaded when the player logged
+     * in.
+     */
+    private Map<String, Macro> macros(UUID player) {
+        return players.computeIfAbsent(player, this::load);
+    }
+
+    private File file(UUID player) {
+        return new File(directory, player + SUFFIX);
+    }
+
+    private Map<String, Macro> load(UUID player) {
+        Map<String, Macro> macros = new LinkedHashMap<>();
+        Macro[] queued = unwritten.get(player);
+        if (queued != null) {
+            for (Macro macro : queued) {
+                macros.put(macro.getName().toLowerCase(Locale.ROOT), macro);
+            }
+            return macros;
+        }
+        File file = file(player);
+        if (!file.isFile()) {
+            return macros;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                logger.warning("Ignoring unreadable macro file " + file.getName());
+                return macros;
+            }
+            for (int n = in.readUnsignedShort(); n > 0; --n) {
+                Macro macro = new Macro(in.readUTF(), in.readUTF());
+                macros.put(macro.getName().toLowerCase(Locale.ROOT), macro);
+            }
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Could not read macro file " + file.getName(), ex);
+        }
+        return macros;
+    }
+
+    /**
+     * Queue a write of a snapshot of the player's macros. The caller must
+     * hold the lock on the map.
+     */
+    private void save(final UUID player, Map<String, Macro> macros) {
+        final Macro[] snapshot = macros.values().toArray(new Macro[0]);
+        unwritten.put(player, snapshot);
+        try {
+            writer.execute(() -> write(player, snapshot));
+        } catch (RejectedExecutionException ex) {
+            write(player, snapshot); // shutting down
+        }
+    }
+
+    private void write(UUID player, Macro[] macros) {
+        File file = file(player);
+        try {
+            if (macros.length == 0) {
+                Files.deleteIfExists(file.toPath());
+            } else {
+                directory.mkdirs();
+                File temp = new File(directory, player + ".tmp");
+                try (DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(temp)))) {
+                    out.writeInt(MAGIC);
+                    out.writeShort(macros.length);
+                    for (Macro macro : macros) {
+                        out.writeUTF(macro.getName());
+                        out.writeUTF(macro.getExpression());
+                    }
+                }
+                Files.move(temp.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            /* Keep a newer snapshot queued meanwhile, or this one if it failed */
+            unwritten.remove(player, macros);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Could not write macro file " + file.getName(), ex);
+        }
+    }
+
+}
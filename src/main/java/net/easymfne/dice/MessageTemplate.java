@@ -0,0 +1,229 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bukkit.ChatColor;
+
+/**
+ * A message template from the configuration, compiled once into a list of
+ * literal text and placeholders. Color codes in the literals are translated
+ * at compile time, so rendering is a single pass into a reused buffer.
+ *
+ * Each literal is also kept in a Discord form, with every formatting code and
+ * the {CHANNEL} tag removed and Markdown characters escaped, so that the
+ * in-game and Discord messages can be rendered together in the same pass.
+ */
+public final class MessageTemplate {
+
+    /**
+     * The tags that may appear in a message template.
+     */
+    public enum Placeholder {
+        PLAYER, NICKNAME, RESULT, COUNT, SIDES, MOD, TOTAL;
+
+        private final String tag = "{" + name() + "}";
+    }
+
+    /**
+     * Supplies the value of each placeholder while a template is rendered.
+     */
+    public interface Values {
+
+        /**
+         * Append the value of a placeholder to the output.
+         *
+         * @param placeholder The placeholder being rendered
+         * @param out The buffer for the in-game message
+         * @param discord The buffer for the Discord message, or null if only
+         *        the in-game message is being rendered
+         */
+        void append(Placeholder placeholder, StringBuilder out, StringBuilder discord);
+    }
+
+    /**
+     * The in-game and Discord forms of one rendered message.
+     */
+    public static final class Rendered {
+
+        private final String game;
+        private final String discord;
+
+        Rendered(String game, String discord) {
+            this.game = game;
+            this.discord = discord;
+        }
+
+        /**
+         * @return The message with legacy color codes and any {CHANNEL} tag
+         */
+        public String getGame() {
+            return game;
+        }
+
+        /**
+         * @return The message as Discord Markdown, free of color codes
+         */
+        public String getDiscord() {
+            return discord;
+        }
+    }
+
+    private static final ThreadLocal<StringBuilder> buffer = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
+    private static final ThreadLocal<StringBuilder> discordBuffer = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
+    /** Each segment is either a literal String or a Placeholder. */
+    private final Object[] segments;
+    /** The Discord form of each literal segment, null for placeholders. */
+    private final String[] discordSegments;
+
+    private MessageTemplate(Object[] segments) {
+        this.segments = segments;
+        this.discordSegments = new String[segments.length];
+        for (int i = 0; i < segments.length; ++i) {
+            if (segments[i] instanceof String) {
+                StringBuilder out = new StringBuilder();
+                appendDiscord(((String) segments[i]).replace("{CHANNEL}", ""), out);
+                discordSegments[i] = out.toString();
+            }
+        }
+    }
+
+    /**
+     * Append text to a Discord message, dropping legacy formatting codes and
+     * escaping the characters Discord reads as Markdown.
+     *
+     * @param text Text that may contain section-sign formatting codes
+     * @param out The buffer to append to
+     */
+    public static void appendDiscord(String text, StringBuilder out) {
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            switch (c) {
+                case ChatColor.COLOR_CHAR:
+                    ++i;
+                    break;
+                case '\\':
+                case '*':
+                case '_':
+                case '~':
+                case '`':
+                case '|':
+                case '>':
+                    out.append('\\').append(c);
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+
+    /**
+     * Compile a template. Unknown tags such as {CHANNEL} are kept as literal
+     * text so that later stages can still replace them.
+     *
+     * @param template The raw template, with '&' color codes
+     * @return The compiled template, or null if the template is empty
+     */
+    public static MessageTemplate compile(String template) {
+        if (template == null || template.isEmpty()) {
+            return null;
+        }
+        List<Object> segments = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < template.length()) {
+            Placeholder found = null;
+            if (template.charAt(i) == '{') {
+                for (Placeholder p : Placeholder.values()) {
+                    if (template.startsWith(p.tag, i)) {
+                        found = p;
+                        break;
+                    }
+                }
+            }
+            if (found == null) {
+                literal.append(template.charAt(i++));
+                continue;
+            }
+            if (literal.length() > 0) {
+                segments.add(ChatColor.translateAlternateColorCodes('&', literal.toString()));
+                literal.setLength(0);
+            }
+            segments.add(found);
+            i += found.tag.length();
+        }
+        if (literal.length() > 0) {
+            segments.add(ChatColor.translateAlternateColorCodes('&', literal.toString()));
+        }
+        return new MessageTemplate(segments.toArray());
+    }
+
+    /**
+     * Render the template using this thread's reusable buffer.
+     *
+     * @param values Supplier of the placeholder values
+     * @return The rendered message
+     */
+    public String render(Values values) {
+        StringBuilder out = buffer.get();
+        out.setLength(0);
+        for (Object segment : segments) {
+            if (segment instanceof Placeholder) {
+                values.append((Placeholder) segment, out, null);
+            } else {
+                out.append((String) segment);
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Render the in-game and Discord forms of the template together, using
+     * this thread's reusable buffers.
+     *
+     * @param values Supplier of the placeholder values for both forms
+     * @return The rendered message
+     */
+    public Rendered renderBoth(Values values) {
+        StringBuilder out = buffer.get();
+        StringBuilder discord = discordBuffer.get();
+        out.setLength(0);
+        discord.setLength(0);
+        for (int i = 0; i < segments.length; ++i) {
+            if (segments[i] instanceof Placeholder) {
+                values.append((Placeholder) segments[i], out, discord);
+            } else {
+                out.append((String) segments[i]);
+                discord.append(discordSegments[i]);
+            }
+        }
+        return new Rendered(out.toString(), discord.toString());
+    }
+
+}
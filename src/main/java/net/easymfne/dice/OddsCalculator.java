@@ -0,0 +1,226 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import java.util.Arrays;
+
+/**
+ * Computes the exact distribution of a compiled DiceExpression, as used by
+ * "/roll odds". Each dice term is built from its single-die distribution,
+ * either by repeated squaring or, for keep/drop terms, by a dynamic program
+ * over the order statistics. Term distributions are memoized, so repeated
+ * queries during a session cost a cache lookup and a final convolution.
+ */
+public class OddsCalculator {
+
+    /** Probability below which the chain of an exploding die is cut off. */
+    private static final double EXPLODE_TAIL = 1e-16;
+
+    /** Rough number of multiply-adds we are willing to spend on one query. */
+    private static final long WORK_LIMIT = 100000000L;
+
+    private final LruCache<String, Distribution> cache;
+
+    /**
+     * @param cacheSize Number of term distributions to keep
+     */
+    public OddsCalculator(int cacheSize) {
+        this.cache = new LruCache<>(cacheSize);
+    }
+
+    /**
+     * Get the distribution of the total of an expression.
+     *
+     * @param expression The compiled expression
+     * @return The distribution of its total
+     * @throws IllegalArgumentException If it is too expensive to compute
+     */
+    public Distribution distribution(DiceExpression expression) {
+        Distribution result = Distribution.ZERO;
+        for (DiceExpression.Term term : expression.getTerms()) {
+            Distribution d = term(term);
+            if (term.negative) {
+                d = d.negate();
+            }
+            result = result == Distribution.ZERO ? d : result.convolve(d);
+        }
+        return result.shift(expression.getModifier());
+    }
+
+    /**
+     * Forget every memoized distribution.
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Get the distribution of one term, ignoring its sign.
+     */
+    private Distribution term(DiceExpression.Term term) {
+        String key = key(term);
+        Distribution d = cache.get(key);
+        if (d == null) {
+            Distribution die = die(term);
+            long values = die.getMax() - die.getMin() + 1;
+            if (term.keep < term.count) {
+                long width = (long) term.keep * die.getMax() + 1;
+                checkWork(values * term.keep * width * term.count);
+                d = keep(die, term.count, term.keep, term.keepHighest);
+            } else {
+                long length = values * term.count;
+                checkWork(length * length / 2);
+                d = die.power(term.count);
+            }
+            cache.put(key, d);
+        }
+        return d;
+    }
+
+    private static void checkWork(long work) {
+        if (work > WORK_LIMIT) {
+            throw new IllegalArgumentException("That expression is too complex to work out!");
+        }
+    }
+
+    private static String key(DiceExpression.Term term) {
+        StringBuilder key = new StringBuilder().append(term.count).append('d').append(term.sides);
+        if (term.keep < term.count) {
+            key.append(term.keepHighest ? "kh" : "kl").append(term.keep);
+        }
+        if (term.explode) {
+            key.append('!');
+        }
+        if (term.reroll > 0) {
+            key.append('r').append(term.reroll);
+        }
+        return key.toString();
+    }
+
+    /**
+     * The distribution of a single die of a term, mirroring
+     * DiceExpression.Term.rollDie: one reroll of low faces, then compounding
+     * explosions on the highest face.
+     */
+    static Distribution die(DiceExpression.Term term) {
+        int s = term.sides;
+        int reroll = Math.min(term.reroll, s);
+        double[] base = new double[s];
+        for (int v = 1; v <= s; ++v) {
+            base[v - 1] = (v > reroll ? 1.0 / s : 0) + (double) reroll / s / s;
+        }
+        if (!term.explode) {
+            return new Distribution(1, base);
+        }
+        /* Each explosion is a fresh die; stop once the chain is negligible */
+        int levels = 0;
+        for (double mass = base[s - 1]; levels < DiceExpression.MAX_EXPLOSIONS
+                && mass >= EXPLODE_TAIL; mass /= s) {
+            ++levels;
+        }
+        double[] p = new double[s * (levels + 1)];
+        System.arraycopy(base, 0, p, 0, s);
+        double mass = base[s - 1];
+        for (int level = 1; level <= levels; ++level) {
+            p[level * s - 1] -= mass;
+            mass /= s;
+            for (int face = 1; face <= s; ++face) {
+                p[level * s + face - 1] += mass;
+            }
+        }
+        return new Distribution(1, p);
+    }
+
+    /**
+     * The distribution of the sum of the k highest (or lowest) of n dice.
+     *
+     * Face values are visited from best to worst. The state is the number of
+     * dice m already showing a better face (only m below k matters) and the
+     * sum kept so far; at each face, the number of the remaining dice showing
+     * it is binomial, conditioned on none of them showing a better face.
+     */
+    static Distribution keep(Distribution die, int n, int k, boolean highest) {
+        int lo = die.getMin(), hi = die.getMax();
+        int width = k * hi + 1;
+        double[][] dp = new double[k][width];
+        double[] result = new double[width];
+        double[] weights = new double[n + 1];
+        dp[0][0] = 1;
+        double remaining = 1;
+        int last = highest ? lo : hi;
+        while (die.probability(last) == 0) {
+            last += highest ? 1 : -1;
+        }
+        for (int v = highest ? hi : lo; ; v += highest ? -1 : 1) {
+            double q = die.probability(v);
+            if (q == 0) {
+                continue;
+            }
+            double r = v == last ? 1 : Math.min(1, q / remaining);
+            remaining -= q;
+            double[][] next = new double[k][width];
+            for (int m = 0; m < k; ++m) {
+                int trials = n - m;
+                binomialWeights(trials, r, weights);
+                for (int sum = 0; sum < width; ++sum) {
+                    double pm = dp[m][sum];
+                    if (pm == 0) {
+                        continue;
+                    }
+                    for (int c = 0; c <= trials; ++c) {
+                        double prob = pm * weights[c];
+                        int kept = sum + Math.min(c, k - m) * v;
+                        if (m + c >= k) {
+                            result[kept] += prob;
+                        } else {
+                            next[m + c][kept] += prob;
+                        }
+                    }
+                }
+            }
+            dp = next;
+            if (v == last) {
+                break;
+            }
+        }
+        return new Distribution(k * lo, Arrays.copyOfRange(result, k * lo, width));
+    }
+
+    /**
+     * Fill weights[0..n] with the binomial probabilities B(n, r).
+     */
+    private static void binomialWeights(int n, double r, double[] weights) {
+        if (r >= 1) {
+            Arrays.fill(weights, 0, n + 1, 0);
+            weights[n] = 1;
+            return;
+        }
+        double w = Math.pow(1 - r, n);
+        double ratio = r / (1 - r);
+        for (int c = 0; c <= n; ++c) {
+            weights[c] = w;
+            w = w * (n - c) / (c + 1) * ratio;
+        }
+        if (weights[0] == 0 && n > 0) {
+            /* (1 - r)^n underflowed; fall back to log space */
+            double logR = Math.log(r), logQ = Math.log1p(-r), logC = 0;
+            for (int c = 0; c <= n; ++c) {
+                weights[c] = Math.exp(logC + c * logR + (n - c) * logQ);
+                logC += Math.log((double) (n - c) / (c + 1));
+            }
+        }
+    }
+
+}
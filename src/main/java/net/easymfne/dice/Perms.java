@@ -14,33 +14,204 @@
  */
 package net.easymfne.dice;
 
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerCommandSendEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.permissions.Permissible;
 
 /**
  * This method provides a static way to check user permissions.
  * 
+ * Online players are checked against a snapshot of all of their dice.*
+ * nodes, packed into the bits of an int, so that a check is a map lookup and
+ * a bit test instead of a walk through the permission plugin's inheritance.
+ * Snapshots are taken on join and retaken whenever the server resends a
+ * player's command list (which it does after op changes and which permission
+ * plugins trigger after recalculating a player) or the player changes world.
+ * The snapshot also records the first cooldown tier the player's permissions
+ * grant, in the bits above the nodes. Other senders, such as the console,
+ * are checked directly.
+ * 
  * @author Eric Hildebrand
  */
 public class Perms {
     
+    private static final int BROADCAST = 1 << 0,
+            HISTORY = 1 << 1,
+            STATS = 1 << 2,
+            RELOAD = 1 << 3,
+            ROLL_ANY = 1 << 4,
+            ROLL_BULK = 1 << 5,
+            ROLL_MULTIPLE = 1 << 6;
+    
+    /** The node behind each bit, indexed by bit position. */
+    private static final String[] NODES = {
+        "dice.roll.broadcast",
+        "dice.history",
+        "dice.stats",
+        "dice.reload",
+        "dice.roll.any",
+        "dice.roll.bulk",
+        "dice.roll.multiple"
+    };
+    
+    /** Snapshot bits above the nodes hold the cooldown tier index plus one. */
+    private static final int TIER_SHIFT = 8;
+    
+    private static final Map<UUID, Integer> snapshots = new ConcurrentHashMap<>();
+    
+    /** The permissions of the cooldown tiers, in the order they are checked. */
+    private static volatile String[] tierNodes = new String[0];
+    
+    /**
+     * Keeps the permission snapshots of online players up to date.
+     */
+    static final class Refresher implements Listener {
+        
+        @EventHandler(priority = EventPriority.MONITOR)
+        public void onPlayerJoin(PlayerJoinEvent event) {
+            refresh(event.getPlayer());
+        }
+        
+        @EventHandler(priority = EventPriority.MONITOR)
+        public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+            refresh(event.getPlayer());
+        }
+        
+        @EventHandler(priority = EventPriority.MONITOR)
+        public void onPlayerCommandSend(PlayerCommandSendEvent event) {
+            refresh(event.getPlayer());
+        }
+        
+        @EventHandler(priority = EventPriority.MONITOR)
+        public void onPlayerQuit(PlayerQuitEvent event) {
+            snapshots.remove(event.getPlayer().getUniqueId());
+        }
+    }
+    
+    /**
+     * Take a new snapshot of a player's dice.* permissions.
+     * 
+     * @param player The player to check
+     * @return The bits of the nodes the player has
+     */
+    static int refresh(Player player) {
+        int bits = 0;
+        for (int i = 0; i < NODES.length; ++i) {
+            if (player.hasPermission(NODES[i])) {
+                bits |= 1 << i;
+            }
+        }
+        bits |= (firstTier(player, tierNodes) + 1) << TIER_SHIFT;
+        snapshots.put(player.getUniqueId(), bits);
+        return bits;
+    }
+    
+    /**
+     * @param player The player to check
+     * @return The bits of the dice.* nodes the player has, which change
+     *         whenever the player's permissions do
+     */
+    static int snapshot(Player player) {
+        Integer bits = snapshots.get(player.getUniqueId());
+        return bits != null ? bits : refresh(player);
+    }
+    
+    /**
+     * Discard every snapshot, so that they are retaken on next use.
+     */
+    static void clear() {
+        snapshots.clear();
+    }
+    
+    /**
+     * Set the cooldown tiers to record in the snapshots, and discard every
+     * snapshot taken with the old ones.
+     * 
+     * @param tiers The tiers granted by a permission, in the order they are
+     *            checked
+     */
+    static void setTiers(List<RateLimiter.Tier> tiers) {
+        String[] nodes = new String[tiers.size()];
+        for (int i = 0; i < nodes.length; ++i) {
+            nodes[i] = tiers.get(i).permission;
+        }
+        tierNodes = nodes;
+        snapshots.clear();
+    }
+    
+    private static int firstTier(Permissible p, String[] nodes) {
+        for (int i = 0; i < nodes.length; ++i) {
+            if (p.hasPermission(nodes[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    private static boolean has(Permissible p, int bit) {
+        if (!(p instanceof Player)) {
+            return p.hasPermission(NODES[Integer.numberOfTrailingZeros(bit)]);
+        }
+        Integer bits = snapshots.get(((Player) p).getUniqueId());
+        return ((bits != null ? bits : refresh((Player) p)) & bit) != 0;
+    }
+    
+    /**
+     * @param p The user rolling dice
+     * @return The index of the first cooldown tier the user has permission
+     *         for, or -1 for none
+     */
+    public static int cooldownTier(Permissible p) {
+        if (!(p instanceof Player)) {
+            return firstTier(p, tierNodes);
+        }
+        return (snapshot((Player) p) >>> TIER_SHIFT) - 1;
+    }
+    
     /** Is the user allowed to broadcast the results of their roll? */
     public static boolean broadcast(Permissible p) {
-        return p.hasPermission("dice.roll.broadcast");
+        return has(p, BROADCAST);
+    }
+    
+    /** Is the user allowed to look up other users' past rolls? */
+    public static boolean canViewHistory(Permissible p) {
+        return has(p, HISTORY);
+    }
+    
+    /** Is the user allowed to view the plugin's roll statistics? */
+    public static boolean canViewStats(Permissible p) {
+        return has(p, STATS);
     }
     
     /** Is the user allowed to reload the plugin's configuration? */
     public static boolean canReload(Permissible p) {
-        return p.hasPermission("dice.reload");
+        return has(p, RELOAD);
     }
     
     /** Can the user roll dice with any number of sides? */
     public static boolean canRollAnyDice(Permissible p) {
-        return p.hasPermission("dice.roll.any");
+        return has(p, ROLL_ANY);
+    }
+    
+    /** Can the user roll pools larger than maximum.count in bulk mode? */
+    public static boolean canRollBulk(Permissible p) {
+        return has(p, ROLL_BULK);
     }
     
     /** Can the user roll multiple dice at once? */
     public static boolean canRollMultiple(Permissible p) {
-        return p.hasPermission("dice.roll.multiple");
+        return has(p, ROLL_MULTIPLE);
     }
     
 }
@@ -0,0 +1,301 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.player.PlayerRespawnEvent;
+import org.bukkit.event.player.PlayerTeleportEvent;
+
+/**
+ * A per-world grid of player block positions, kept up to date from player
+ * events, so that range-limited broadcasts only look at nearby cells instead
+ * of every online player, and broadcasts limited to one world need not ask
+ * each player where they are. The cell size is at least the broadcast range,
+ * so a query never touches more than two cells along each axis.
+ *
+ * The grid is safe for concurrent use, as on Folia each player's events
+ * arrive on the thread of the region they are in while broadcasts read from
+ * other regions. Only the player's own region reads their location and moves
+ * their entry, including when the grid is rebuilt, and cells are filed and
+ * emptied atomically.
+ */
+public class PlayerGrid implements Listener {
+
+    /** Cell size when only worlds matter: 256 blocks, to keep cells few. */
+    private static final int WORLD_SHIFT = 8;
+
+    private final Dice plugin;
+    private final Map<UUID, Tracked> tracked = new ConcurrentHashMap<>();
+    private final Map<UUID, Map<Long, Set<Tracked>>> worlds = new ConcurrentHashMap<>();
+    private volatile int cellShift = 4;
+    private volatile boolean enabled = false;
+
+    /**
+     * A player's cached block position and the cell they are filed under.
+     */
+    private static final class Tracked {
+
+        final Player player;
+        volatile UUID world;
+        volatile int x, y, z;
+        volatile long cell;
+
+        Tracked(Player player) {
+            this.player = player;
+        }
+    }
+
+    /**
+     * @param plugin The Dice plugin
+     */
+    public PlayerGrid(Dice plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Rebuild the grid for new broadcast settings. Tracking is disabled
+     * entirely for unlimited crossworld broadcasts, as every broadcast then
+     * goes to everyone. Each online player is filed by a task on the region
+     * that owns them, so the grid fills in over the next tick.
+     *
+     * @param range The configured broadcast range
+     * @param crossworld Whether broadcasts reach other worlds
+     */
+    public void reset(int range, boolean crossworld) {
+        configure(range, crossworld);
+        if (!enabled) {
+            return;
+        }
+        Scheduler scheduler = plugin.getTaskScheduler();
+        for (final Player player : plugin.getServer().getOnlinePlayers()) {
+            scheduler.runFor(player, () -> track(player));
+        }
+    }
+
+    /**
+     * Rebuild the grid for new broadcast settings from a given set of
+     * players, reading their positions on the calling thread.
+     *
+     * @param range The configured broadcast range
+     * @param crossworld Whether broadcasts reach other worlds
+     * @param players The players to track
+     */
+    void reset(int range, boolean crossworld, Collection<? extends Player> players) {
+        configure(range, crossworld);
+        if (!enabled) {
+            return;
+        }
+        for (Player player : players) {
+            track(player);
+        }
+    }
+
+    private void configure(int range, boolean crossworld) {
+        enabled = false;
+        cellShift = range >= 0
+                ? Math.max(4, 32 - Integer.numberOfLeadingZeros(Math.max(1, range - 1)))
+                : WORLD_SHIFT;
+        tracked.clear();
+        worlds.clear();
+        enabled = range >= 0 || !crossworld;
+    }
+
+    private void track(Player player) {
+        if (enabled && player.isOnline()) {
+            update(player, player.getLocation());
+        }
+    }
+
+    /**
+     * Collect every tracked player strictly within range of the center player,
+     * in the same world unless crossworld broadcasts are enabled.
+     *
+     * @param center The player at the center of the search
+     * @param range The search radius in blocks
+     * @param crossworld Whether to search every world at the same coordinates
+     * @param out The collection to add recipients to
+     */
+    public void collectNearby(Player center, int range, boolean crossworld, Collection<Player> out) {
+        Tracked origin = tracked.get(center.getUniqueId());
+        if (origin == null) {
+            origin = new Tracked(center);
+            Location loc = center.getLocation();
+            origin.world = center.getWorld().getUID();
+            origin.x = loc.getBlockX();
+            origin.y = loc.getBlockY();
+            origin.z = loc.getBlockZ();
+        }
+        int shift = cellShift;
+        long dSquared = (long) range * range;
+        int minX = (origin.x - range) >> shift, maxX = (origin.x + range) >> shift;
+        int minZ = (origin.z - range) >> shift, maxZ = (origin.z + range) >> shift;
+
+        for (Map.Entry<UUID, Map<Long, Set<Tracked>>> world : worlds.entrySet()) {
+            if (!crossworld && !world.getKey().equals(origin.world)) {
+                continue;
+            }
+            for (int cx = minX; cx <= maxX; ++cx) {
+                for (int cz = minZ; cz <= maxZ; ++cz) {
+                    Set<Tracked> cell = world.getValue().get(cellKey(cx, cz));
+                    if (cell == null) {
+                        continue;
+                    }
+                    for (Tracked t : cell) {
+                        long dx = t.x - origin.x, dy = t.y - origin.y, dz = t.z - origin.z;
+                        if (dx * dx + dy * dy + dz * dz < dSquared) {
+                            out.add(t.player);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Collect every tracked player in a world.
+     *
+     * @param world The world's UID
+     * @param out The collection to add recipients to
+     */
+    public void collectWorld(UUID world, Collection<Player> out) {
+        Map<Long, Set<Tracked>> cells = worlds.get(world);
+        if (cells == null) {
+            return;
+        }
+        for (Set<Tracked> cell : cells.values()) {
+            for (Tracked t : cell) {
+                out.add(t.player);
+            }
+        }
+    }
+
+    /**
+     * @return Whether the grid is tracking players
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        if (enabled) {
+            update(event.getPlayer(), event.getPlayer().getLocation());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        Tracked t = tracked.remove(event.getPlayer().getUniqueId());
+        if (t != null) {
+            removeFromCell(t);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPlayerMove(PlayerMoveEvent event) {
+        if (enabled) {
+            update(event.getPlayer(), event.getTo());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPlayerTeleport(PlayerTeleportEvent event) {
+        if (enabled) {
+            update(event.getPlayer(), event.getTo());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+        if (enabled) {
+            update(event.getPlayer(), event.getPlayer().getLocation());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerRespawn(PlayerRespawnEvent event) {
+        if (enabled) {
+            update(event.getPlayer(), event.getRespawnLocation());
+        }
+    }
+
+    /**
+     * Move a player's cached position, refiling them only if their block or
+     * cell actually changed.
+     */
+    private void update(Player player, Location to) {
+        if (to == null || to.getWorld() == null) {
+            return;
+        }
+        int x = to.getBlockX(), y = to.getBlockY(), z = to.getBlockZ();
+        UUID world = to.getWorld().getUID();
+        Tracked t = tracked.get(player.getUniqueId());
+        if (t == null) {
+            t = tracked.computeIfAbsent(player.getUniqueId(), id -> new Tracked(player));
+        } else if (t.x == x && t.y == y && t.z == z && world.equals(t.world)) {
+            return;
+        }
+        long cell = cellKey(x >> cellShift, z >> cellShift);
+        if (t.world != null && (cell != t.cell || !world.equals(t.world))) {
+            removeFromCell(t);
+            t.world = null;
+        }
+        t.x = x;
+        t.y = y;
+        t.z = z;
+        if (t.world == null) {
+            t.cell = cell;
+            t.world = world;
+            final Tracked filed = t;
+            worlds.computeIfAbsent(world, w -> new ConcurrentHashMap<>()).compute(cell, (key, set) -> {
+                if (set == null) {
+                    set = ConcurrentHashMap.newKeySet(4);
+                }
+                set.add(filed);
+                return set;
+            });
+        }
+    }
+
+    private void removeFromCell(final Tracked t) {
+        Map<Long, Set<Tracked>> cells = worlds.get(t.world);
+        if (cells == null) {
+            return;
+        }
+        cells.computeIfPresent(t.cell, (key, set) -> {
+            set.remove(t);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    private static long cellKey(int cx, int cz) {
+        return ((long) cx << 32) | (cz & 0xFFFFFFFFL);
+    }
+
+}
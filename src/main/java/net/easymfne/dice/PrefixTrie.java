@@ -0,0 +1,129 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * An immutable, case-insensitive prefix trie for tab completion. Every node
+ * stores the finished list of words below it, in the order they were given,
+ * so a lookup walks the prefix and returns that list without allocating.
+ */
+public final class PrefixTrie {
+
+    private static final char[] NO_KEYS = new char[0];
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    /** An empty trie. */
+    public static final PrefixTrie EMPTY = build(Collections.<String>emptyList(), 0);
+
+    private static final class Node {
+
+        char[] keys = NO_KEYS;
+        Node[] children = NO_CHILDREN;
+        List<String> words = Collections.emptyList();
+
+        Node child(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            return i < 0 ? null : children[i];
+        }
+    }
+
+    /**
+     * A node while the trie is being built.
+     */
+    private static final class Builder {
+
+        final TreeMap<Character, Builder> children = new TreeMap<>();
+        final List<String> words = new ArrayList<>();
+
+        Node freeze() {
+            Node node = new Node();
+            if (!children.isEmpty()) {
+                node.keys = new char[children.size()];
+                node.children = new Node[children.size()];
+                int i = 0;
+                for (Map.Entry<Character, Builder> child : children.entrySet()) {
+                    node.keys[i] = child.getKey();
+                    node.children[i++] = child.getValue().freeze();
+                }
+            }
+            if (!words.isEmpty()) {
+                node.words = Collections.unmodifiableList(new ArrayList<>(words));
+            }
+            return node;
+        }
+    }
+
+    private final Node root;
+
+    private PrefixTrie(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Build a trie. Duplicate words, ignoring case, keep their first place.
+     *
+     * @param words The words, most important first
+     * @param limit Most words offered for any one prefix
+     * @return The trie
+     */
+    public static PrefixTrie build(Iterable<String> words, int limit) {
+        Builder root = new Builder();
+        Set<String> seen = new HashSet<>();
+        for (String word : words) {
+            if (word == null || word.isEmpty() || !seen.add(word.toLowerCase())) {
+                continue;
+            }
+            Builder node = root;
+            if (node.words.size() < limit) {
+                node.words.add(word);
+            }
+            for (int i = 0; i < word.length(); ++i) {
+                char c = Character.toLowerCase(word.charAt(i));
+                Builder next = node.children.get(c);
+                if (next == null) {
+                    node.children.put(c, next = new Builder());
+                }
+                node = next;
+                if (node.words.size() < limit) {
+                    node.words.add(word);
+                }
+            }
+        }
+        return new PrefixTrie(root.freeze());
+    }
+
+    /**
+     * @param prefix What has been typed so far
+     * @return The words starting with the prefix, ignoring case; an
+     *         unmodifiable list shared between calls
+     */
+    public List<String> complete(String prefix) {
+        Node node = root;
+        for (int i = 0; i < prefix.length() && node != null; ++i) {
+            node = node.child(Character.toLowerCase(prefix.charAt(i)));
+        }
+        return node == null ? Collections.<String>emptyList() : node.words;
+    }
+
+}
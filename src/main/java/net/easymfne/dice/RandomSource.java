@@ -0,0 +1,188 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Supplies the Random used by every roll path in the plugin. The backend is
+ * chosen with "random.mode" in the configuration:
+ * <ul>
+ * <li>"threadlocal" - ThreadLocalRandom, uncontended on every thread</li>
+ * <li>"splittable" - a SplittableRandom per thread, split from one root</li>
+ * <li>"seeded" - one shared generator with a fixed seed, so that a session
+ * can be replayed roll for roll</li>
+ * </ul>
+ */
+public abstract class RandomSource {
+
+    /**
+     * @return The generator to use on the calling thread
+     */
+    public abstract Random current();
+
+    /**
+     * @return A short description for logging
+     */
+    public abstract String describe();
+
+    /**
+     * Create a source for a configured mode. Unknown modes fall back to
+     * "threadlocal".
+     *
+     * @param mode The configured mode
+     * @param seed The seed used by the "seeded" mode
+     * @return The random source
+     */
+    public static RandomSource create(String mode, final long seed) {
+        if ("seeded".equalsIgnoreCase(mode)) {
+            final Random shared = new SharedAdapter(new SplittableRandom(seed));
+            return new RandomSource() {
+                @Override
+                public Random current() {
+                    return shared;
+                }
+
+                @Override
+                public String describe() {
+                    return "seeded (" + seed + ")";
+                }
+            };
+        }
+        if ("splittable".equalsIgnoreCase(mode)) {
+            final SplittableRandom root = new SplittableRandom();
+            final ThreadLocal<Random> local = new ThreadLocal<Random>() {
+                @Override
+                protected Random initialValue() {
+                    synchronized (root) {
+                        return new SplittableAdapter(root.split());
+                    }
+                }
+            };
+            return new RandomSource() {
+                @Override
+                public Random current() {
+                    return local.get();
+                }
+
+                @Override
+                public String describe() {
+                    return "splittable";
+                }
+            };
+        }
+        return new RandomSource() {
+            @Override
+            public Random current() {
+                return ThreadLocalRandom.current();
+            }
+
+            @Override
+            public String describe() {
+                return "threadlocal";
+            }
+        };
+    }
+
+    /**
+     * Presents a SplittableRandom as a java.util.Random. Not thread-safe; each
+     * instance belongs to one thread.
+     */
+    private static class SplittableAdapter extends Random {
+
+        private static final long serialVersionUID = 1L;
+        private final SplittableRandom source;
+
+        SplittableAdapter(SplittableRandom source) {
+            this.source = source;
+        }
+
+        @Override
+        protected int next(int bits) {
+            return source.nextInt() >>> (32 - bits);
+        }
+
+        @Override
+        public int nextInt() {
+            return source.nextInt();
+        }
+
+        @Override
+        public int nextInt(int bound) {
+            return source.nextInt(bound);
+        }
+
+        @Override
+        public long nextLong() {
+            return source.nextLong();
+        }
+
+        @Override
+        public double nextDouble() {
+            return source.nextDouble();
+        }
+
+        @Override
+        public boolean nextBoolean() {
+            return source.nextBoolean();
+        }
+    }
+
+    /**
+     * A SplittableAdapter shared by every thread. Calls are serialized, so the
+     * sequence depends only on the seed and the order of rolls.
+     */
+    private static final class SharedAdapter extends SplittableAdapter {
+
+        private static final long serialVersionUID = 1L;
+
+        SharedAdapter(SplittableRandom source) {
+            super(source);
+        }
+
+        @Override
+        protected synchronized int next(int bits) {
+            return super.next(bits);
+        }
+
+        @Override
+        public synchronized int nextInt() {
+            return super.nextInt();
+        }
+
+        @Override
+        public synchronized int nextInt(int bound) {
+            return super.nextInt(bound);
+        }
+
+        @Override
+        public synchronized long nextLong() {
+            return super.nextLong();
+        }
+
+        @Override
+        public synchronized double nextDouble() {
+            return super.nextDouble();
+        }
+
+        @Override
+        public synchronized boolean nextBoolean() {
+            return super.nextBoolean();
+        }
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+/**
+ * A lock-free token-bucket rate limiter shared by in-game and Discord rolls.
+ * Players are keyed by UUID and Discord users by their numeric ID.
+ *
+ * Each bucket is a single "theoretical arrival time" (the generic cell rate
+ * algorithm): a roll is allowed while that time is no more than (burst - 1)
+ * refill intervals in the future, and each allowed roll pushes it one
+ * interval further. A bucket whose time has passed is full again, which is
+ * exactly the state of a missing bucket, so idle entries can be dropped.
+ */
+public class RateLimiter implements Listener {
+
+    /**
+     * A named rate, granted by an optional permission node.
+     */
+    public static final class Tier {
+
+        final String name;
+        final String permission;
+        final int burst;
+        final long refillMillis;
+
+        /**
+         * @param name Name of the tier in the configuration
+         * @param permission Permission granting the tier, or null for none
+         * @param burst Number of rolls that may be made back to back
+         * @param refillMillis Milliseconds to regain one roll; 0 is unlimited
+         */
+        public Tier(String name, String permission, int burst, long refillMillis) {
+            this.name = name;
+            this.permission = permission;
+            this.burst = Math.max(1, burst);
+            this.refillMillis = Math.max(0, refillMillis);
+        }
+    }
+
+    private final ConcurrentHashMap<Object, AtomicLong> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * Try to take one roll from a bucket.
+     *
+     * @param key A player UUID or a Discord user ID
+     * @param tier The rate that applies to the key
+     * @param penaltyMillis Extra wait added when the roll is refused
+     * @return 0 if the roll is allowed, otherwise milliseconds to wait
+     */
+    public long tryAcquire(Object key, Tier tier, long penaltyMillis) {
+        if (tier.refillMillis == 0) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        long tolerance = tier.refillMillis * (tier.burst - 1);
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            AtomicLong fresh = new AtomicLong(now);
+            bucket = buckets.putIfAbsent(key, fresh);
+            if (bucket == null) {
+                bucket = fresh;
+            }
+        }
+        while (true) {
+            long tat = bucket.get();
+            long base = Math.max(tat, now);
+            if (base - now > tolerance) {
+                /* impatient bugger, aren't you? :P */
+                long wait = base - now - tolerance;
+                if (penaltyMillis > 0) {
+                    bucket.addAndGet(penaltyMillis);
+                }
+                return wait;
+            }
+            if (bucket.compareAndSet(tat, base + tier.refillMillis)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Forget a key if its bucket has refilled completely, e.g. when a player
+     * leaves. A bucket that is still cooling down or serving a penalty is
+     * kept, so that leaving and rejoining does not reset it; evictIdle drops
+     * it later.
+     *
+     * @param key A player UUID or a Discord user ID
+     */
+    public void forgetIfIdle(Object key) {
+        evictIfIdle(key, System.currentTimeMillis());
+    }
+
+    /**
+     * Drop every bucket that has refilled completely. A roll racing with the
+     * sweep may at worst be granted one extra token.
+     */
+    public void evictIdle() {
+        final long now = System.currentTimeMillis();
+        for (Object key : buckets.keySet()) {
+            evictIfIdle(key, now);
+        }
+    }
+
+    private void evictIfIdle(Object key, final long now) {
+        buckets.computeIfPresent(key, (k, bucket) -> bucket.get() <= now ? null : bucket);
+    }
+
+    /**
+     * @return The number of keys currently tracked
+     */
+    public int size() {
+        return buckets.size();
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        forgetIfIdle(event.getPlayer().getUniqueId());
+    }
+
+}
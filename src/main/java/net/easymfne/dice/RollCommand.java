@@ -14,21 +14,26 @@
  */
 package net.easymfne.dice;
 
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import java.util.Random;
-import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
 
+import net.kyori.adventure.audience.Audience;
+import net.kyori.adventure.text.Component;
 import net.kyori.adventure.text.format.NamedTextColor;
 import net.kyori.adventure.text.serializer.legacy.LegacyComponentSerializer;
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
+import org.bukkit.OfflinePlayer;
 import org.bukkit.Sound;
 import org.bukkit.SoundCategory;
 import org.bukkit.command.Command;
@@ -45,75 +50,108 @@ import org.jetbrains.annotations.NotNull;
  */
 public class RollCommand implements CommandExecutor, TabCompleter {
 
+    /** Number of term distributions memoized for "/roll odds". */
+    private static final int ODDS_CACHE_SIZE = 128;
+
+    /** Most expressions that may be rolled in one command. */
+    private static final int BATCH_MAXIMUM = 8;
+
+    /** Separates a label from its expression in a batch, as in "atk:1d20". */
+    private static final char LABEL_SEPARATOR = ':';
+
+    /** Longest label shown for an expression in a batch. */
+    private static final int LABEL_LENGTH = 16;
+
+    /** Longest name a macro may have. */
+    private static final int MACRO_NAME_LENGTH = 16;
+
+    /** Words that can't be used as macro names. */
+    private static final String[] SUBCOMMANDS = {
+        "help", "reload", "odds", "history", "stats", "save", "macros"
+    };
+
+    /** Default and largest number of rolls shown by "/roll history". */
+    private static final int HISTORY_LIMIT = 10, HISTORY_MAXIMUM = 100;
+
+    private static final DateTimeFormatter HISTORY_TIME
+            = DateTimeFormatter.ofPattern("MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
     private final Dice plugin;
-    private final Random random = new Random();
-    protected final Set<String> colors = new HashSet(Arrays.asList(
-            "BLACK", "DARK_BLUE", "DARK_GREEN", "DARK_AQUA", "DARK_RED",
-            "DARK_PURPLE", "GOLD", "GRAY", "DARK_GRAY", "BLUE", "GREEN",
-            "AQUA", "RED", "LIGHT_PURPLE", "YELLOW", "WHITE", "MAGIC",
-            "BOLD", "STRIKETHROUGH", "UNDERLINE", "ITALIC", "RESET")
-    );
-    private final HashMap<Player, Long> lastCall = new HashMap<>();
-	private final static Pattern diceParts = Pattern.compile("^(([0-9]+)?d)?([0-9]+)((\\+|\\-)([0-9]+))?$");
-	
+    private final OddsCalculator odds = new OddsCalculator(ODDS_CACHE_SIZE);
+    private final RollCompleter completer;
+
     /**
-     * Instantiate by getting a reference to the plugin instance, creating a new
-     * Random, and registering this class to handle the '/roll' command.
+     * Instantiate by getting a reference to the plugin instance and registering
+     * this class to handle the '/roll' command.
      *
      * @param plugin Reference to Dice plugin instance
      */
     public RollCommand(Dice plugin) {
         this.plugin = plugin;
+        this.completer = new RollCompleter(plugin.getMacroStore());
         plugin.getCommand("roll").setExecutor(this);
         plugin.getCommand("roll").setTabCompleter(this);
+        plugin.getServer().getPluginManager().registerEvents(completer, plugin);
     }
 
     /**
      * Broadcast the results of a dice roll to the players of the server.
      * Configuration can be set so that messages are only set within the world
      * that the player resides, and also within a certain distance of them. Dice
-     * rolled by non-players (e.g. the Console) are sent to all players.
+     * rolled by non-players (e.g. the Console) are sent to all players. Range
+     * limited and single-world broadcasts are answered from the PlayerGrid.
+     * Outside of chat channels the message is converted to a component once
+     * and sent to all recipients through a single Audience. The number of
+     * recipients is recorded in the metrics, unless a chat channel delivers
+     * the message.
      *
+     * On Folia, range-limited broadcasts run on the roller's region and every
+     * other broadcast runs on the global region; on Paper they all run at
+     * once on the main thread.
+     *
+     * @param config The configuration snapshot for this roll
      * @param sender The user rolling the dice
      * @param message The fully-formatted message to display
      */
-    private void broadcast(CommandSender sender, String message) {
+    private void broadcast(final Config config, CommandSender sender, String message) {
         if (message == null) {
             return;
         }
-        Player p1 = (sender instanceof Player ? (Player) sender : null);
-
-        if (plugin.getPluginConfig().isLogging()) {
-            plugin.getLogger().info(message);
-        }
-
-        if (p1 != null && plugin.getPluginConfig().broadcast_useChannel) {
-            if (plugin.getPluginConfig().useLegendChat) {
-                br.com.devpaulo.legendchat.channels.types.Channel ch
-                        = br.com.devpaulo.legendchat.api.Legendchat.getPlayerManager().getPlayerFocusedChannel(p1);
-                ChatColor color2 = ChatColor.WHITE;
-
-                final String colorStr = ch.getStringColor().toUpperCase();
-                if (colors.contains(colorStr)) {
-                    color2 = ChatColor.valueOf(colorStr);
+        final Player p1 = (sender instanceof Player ? (Player) sender : null);
+
+        if (p1 != null && config.broadcast_useChannel) {
+            if (config.useLegendChat) {
+                ChannelIndex.Entry ch = plugin.getChannelIndex().getFocused(p1);
+                if (ch != null) {
+                    ch.getChannel().sendMessage(p1, message.replace("{CHANNEL}", ch.getColor()),
+                            LegendChatListener.magicFormat, false);
                 }
-
-                ch.sendMessage(p1, message.replace("{CHANNEL}", color2.toString()), LegendChatListener.magicFormat, false);
             }
             // TODO? add more plugins?
         } else {
-            message = message.replace("{CHANNEL}", "");
-            double dSquared = square(plugin.getPluginConfig().getBroadcastRange());
-            for (Player p2 : plugin.getServer().getOnlinePlayers()) {
-                if (plugin.getPluginConfig().isCrossworld()
-                        || p1 == null
-                        || p1.getWorld() == p2.getWorld()) {
-                    if (plugin.getPluginConfig().getBroadcastRange() < 0
-                            || p1 == null
-                            || getDSquared(p1, p2) < dSquared) {
-                        p2.sendMessage(message);
-                    }
-                }
+            final Component component = RollFormatter.toComponent(message);
+            if (p1 == null || (config.isCrossworld() && config.getBroadcastRange() < 0)) {
+                plugin.getTaskScheduler().runGlobal(() -> {
+                    Collection<? extends Player> online = plugin.getServer().getOnlinePlayers();
+                    Audience.audience(online).sendMessage(component);
+                    plugin.getMetrics().recordRecipients(online.size());
+                });
+            } else if (config.getBroadcastRange() >= 0) {
+                plugin.getTaskScheduler().runFor(p1, () -> {
+                    List<Player> recipients = new ArrayList<>();
+                    plugin.getPlayerGrid().collectNearby(p1, config.getBroadcastRange(),
+                            config.isCrossworld(), recipients);
+                    Audience.audience(recipients).sendMessage(component);
+                    plugin.getMetrics().recordRecipients(recipients.size());
+                });
+            } else {
+                final UUID world = p1.getWorld().getUID();
+                plugin.getTaskScheduler().runGlobal(() -> {
+                    List<Player> recipients = new ArrayList<>();
+                    plugin.getPlayerGrid().collectWorld(world, recipients);
+                    Audience.audience(recipients).sendMessage(component);
+                    plugin.getMetrics().recordRecipients(recipients.size());
+                });
             }
         }
     }
@@ -128,133 +166,45 @@ public class RollCommand implements CommandExecutor, TabCompleter {
 
     /**
      * Format and return a String that will be used to display the roll results.
-     * This method replaces tags: {PLAYER}, {RESULT}, {COUNT}, {SIDES}, {TOTAL}.
-     * This method also replaces '&' style color codes with proper ChatColors.
+     * This method fills tags: {PLAYER}, {RESULT}, {COUNT}, {SIDES}, {TOTAL}
+     * into the template compiled by the configuration.
      *
+     * @param config The configuration snapshot for this roll
      * @param sender The user that rolled the dice
-     * @param roll The results of the roll, as an array
-     * @param sides The number of sides on the dice
-	 * @param mod Modifier for the end result
-     * @return The fancy-formatted message
+     * @param roll The results of the roll
+     * @return The fancy-formatted message, or null if the template is empty
      */
-    private String formatString(CommandSender sender, Integer[] roll, int sides, int mod) {
-        String result;
+    private String formatString(Config config, CommandSender sender, DiceRoll roll) {
+        MessageTemplate template;
         if (Perms.broadcast(sender)) {
-            if (roll.length > 1) {
-                result = plugin.getPluginConfig().message_broadcast_multi;
+            if (roll.getCount() > 1) {
+                template = config.getBroadcastMultiTemplate();
             } else {
-                result = plugin.getPluginConfig().getBroadcastMessage();
+                template = config.getBroadcastTemplate();
             }
         } else {
-            result = plugin.getPluginConfig().getPrivateMessage();
-        }
-        if (result == null || result.length() == 0) {
-            return null;
-        }
-        result = result
-                .replace("{PLAYER}", sender.getName())
-                .replace("{NICKNAME}", formatName(sender))
-                .replace("{RESULT}", plugin.getPluginConfig().natColors_enabled ? formatResults(roll, sides, mod) : String.valueOf(roll[0] + mod))
-                .replace("{COUNT}", String.valueOf(roll.length))
-                .replace("{SIDES}", String.valueOf(sides))
-                .replace("{MOD}", mod == 0 ? "" : (mod > 0 ? "+" : "") + String.valueOf(mod))
-                .replace("{TOTAL}", plugin.getPluginConfig().natColors_enabled ? formatResultTotal(roll, sides, mod) : String.valueOf(sum(roll) + mod));
-        return ChatColor.translateAlternateColorCodes('&', result);
-
-    }
-    
-    protected String formatString(String sender, Integer[] roll, int sides, int mod) {
-        String result;
-        if (roll.length > 1) {
-            result = plugin.getPluginConfig().message_broadcast_multi;
-        } else {
-            result = plugin.getPluginConfig().getBroadcastMessage();
-        }
-        if (result == null || result.length() == 0) {
-            return null;
-        }
-        result = result
-                .replace("{PLAYER}", sender)
-                .replace("{NICKNAME}", sender)
-                .replace("{RESULT}", plugin.getPluginConfig().natColors_enabled ? formatResults(roll, sides, mod) : String.valueOf(roll[0] + mod))
-                .replace("{COUNT}", String.valueOf(roll.length))
-                .replace("{SIDES}", String.valueOf(sides))
-                .replace("{MOD}", mod == 0 ? "" : (mod > 0 ? "+" : "") + String.valueOf(mod))
-                .replace("{TOTAL}", plugin.getPluginConfig().natColors_enabled ? formatResultTotal(roll, sides, mod) : String.valueOf(sum(roll) + mod));
-        return ChatColor.translateAlternateColorCodes('&', result);
-    }
-
-    private String formatResultTotal(Integer[] roll, int max, int mod) {
-        int median = (int) Math.floor(max / 3.) * roll.length;
-        max *= roll.length;
-        int total = sum(roll) + mod;
-
-        if (total <= roll.length) {
-            return plugin.getPluginConfig().natColors_critfail + total;
-        } else if (total >= max) {
-            return plugin.getPluginConfig().natColors_critcrit + total;
-        } else if (total < median) {
-            return plugin.getPluginConfig().natColors_fail + total;
-        } else if (total > max - median) {
-            return plugin.getPluginConfig().natColors_crit + total;
-        }
-        return plugin.getPluginConfig().natColors_normal + total;
-    }
-
-    private String formatResults(Integer[] roll, int max, int mod) {
-        int median = (int) Math.floor(max / 3.);
-		roll[0] += mod;
-        if (roll.length == 1) {
-            if (roll[0] == 1) {
-                return plugin.getPluginConfig().natColors_critfail + roll[0];
-            } else if (roll[0] == max) {
-                return plugin.getPluginConfig().natColors_critcrit + roll[0];
-            } else if (roll[0] < median) {
-                return plugin.getPluginConfig().natColors_fail + roll[0];
-            } else if (roll[0] > max - median) {
-                return plugin.getPluginConfig().natColors_crit + roll[0];
-            }
-            return plugin.getPluginConfig().natColors_normal + roll[0];
-        }
-        StringBuilder sb = new StringBuilder();
-        for (int i = roll.length - 1; i >= 0; --i) {
-            if (roll[i] == 1) {
-                sb.append(plugin.getPluginConfig().natColors_critfail).append(roll[i]);
-            } else if (roll[i] == max) {
-                sb.append(plugin.getPluginConfig().natColors_critcrit).append(roll[i]);
-            } else if (roll[i] < median) {
-                sb.append(plugin.getPluginConfig().natColors_fail).append(roll[i]);
-            } else if (roll[i] > max - median) {
-                sb.append(plugin.getPluginConfig().natColors_crit).append(roll[i]);
-            } else {
-                sb.append(plugin.getPluginConfig().natColors_normal).append(roll[i]);
-            }
-            if (i != 0) {
-                sb.append(", ");
-            }
-        }
-        return sb.toString();
-    }
-
-    private String formatName(CommandSender sender) {
-        if (sender instanceof Player) {
-            return ((Player) sender).getDisplayName().replaceAll("[^A-Za-z0-9_]", "");
+            template = config.getPrivateTemplate();
         }
-        return sender.getName();
+        return RollFormatter.render(config, template, sender, sender.getName(), roll);
     }
 
     /**
-     * Get the squared distance between two players.
+     * Format a roll made from Discord, producing the in-game message and the
+     * Discord reply in one pass over the broadcast template.
      *
-     * @param p1 Player one
-     * @param p2 Player two
-     * @return The distance^2
+     * @param config The configuration snapshot for this roll
+     * @param sender The name of the Discord user that rolled the dice
+     * @param roll The results of the roll
+     * @return Both forms of the message, or null if broadcasts are disabled
      */
-    private int getDSquared(Player p1, Player p2) {
-        int dx = p1.getLocation().getBlockX() - p2.getLocation().getBlockX();
-        int dy = p1.getLocation().getBlockY() - p2.getLocation().getBlockY();
-        int dz = p1.getLocation().getBlockZ() - p2.getLocation().getBlockZ();
-        return dx * dx + dy * dy + dz * dz;
+    protected MessageTemplate.Rendered formatString(Config config, String sender, DiceRoll roll) {
+        MessageTemplate template;
+        if (roll.getCount() > 1) {
+            template = config.getBroadcastMultiTemplate();
+        } else {
+            template = config.getBroadcastTemplate();
+        }
+        return RollFormatter.renderBoth(config, template, null, sender, roll);
     }
 
     /**
@@ -272,9 +222,8 @@ public class RollCommand implements CommandExecutor, TabCompleter {
 
     /**
      * This method handles user commands. Usage: "/roll <help,reload>" which
-     * either shows help or reloads config. Usage: "/roll [count] [d<sides>]"
-     * where the order of the arguments does not matter, but the number of sides
-     * must be prefixed with 'd'.
+     * either shows help or reloads config. Usage: "/roll [expression]" where the
+     * expression is dice notation understood by the DiceParser, e.g. "4d6kh3+2".
      */
     @Override
     public boolean onCommand(@NotNull CommandSender sender, @NotNull Command command, @NotNull String label, String[] args) {
@@ -285,125 +234,663 @@ public class RollCommand implements CommandExecutor, TabCompleter {
                 return true;
             }
             if (Perms.canReload(sender) && args[0].equalsIgnoreCase("reload")) {
-                plugin.reload();
-                sender.sendMessage("Configuration reloaded");
+                plugin.reload(sender);
+                return true;
+            }
+            if (sender instanceof Player && args[0].equalsIgnoreCase("macros")) {
+                showMacros((Player) sender);
                 return true;
             }
         }
+        if (args.length > 1 && sender instanceof Player && args[0].equalsIgnoreCase("save")) {
+            saveMacro((Player) sender, args);
+            return true;
+        }
+        if (args.length > 1 && args[0].equalsIgnoreCase("odds")) {
+            showOdds(sender, args);
+            return true;
+        }
+        if (args.length > 1 && Perms.canViewHistory(sender) && args[0].equalsIgnoreCase("history")) {
+            showHistory(sender, args);
+            return true;
+        }
+        if (args.length == 1 && Perms.canViewStats(sender) && args[0].equalsIgnoreCase("stats")) {
+            sender.sendMessage(ChatColor.GOLD + "Dice statistics:");
+            for (String line : plugin.getMetrics().summarize(plugin.getDiscordOutbox(), plugin.getJournal())) {
+                sender.sendMessage(ChatColor.WHITE + line);
+            }
+            return true;
+        }
+
+        final RollMetrics metrics = plugin.getMetrics();
+        final Config config = plugin.getPluginConfig();
 
         if (sender instanceof Player) {
             final Player p = (Player) sender;
-            long now = System.currentTimeMillis();
-            Long last = lastCall.get(p);
-            if (last != null && now - last < 5600) {
+            long wait = plugin.getRateLimiter().tryAcquire(p.getUniqueId(),
+                    config.getCooldownTier(p), config.getCooldownPenalty());
+            if (wait > 0) {
+                metrics.countRejection(RollMetrics.Source.GAME);
                 p.playSound(p.getEyeLocation(), Sound.ENTITY_VILLAGER_NO, SoundCategory.PLAYERS, 1, 1.2F);
-                p.sendMessage(ChatColor.RED + "Wait at least five seconds between dice rolls!");
-                lastCall.put(p, last + 1500); // impatient bugger, aren't you? :P
+                p.sendMessage(ChatColor.RED + "Wait " + (wait + 999) / 1000
+                        + " more second(s) before rolling again!");
                 return true;
             }
-            lastCall.put(p, now);
-        }
-
-        int count = plugin.getPluginConfig().getDefaultCount();
-        int sides = plugin.getPluginConfig().getDefaultSides();
-		int mod = 0;
-		
-		if (args.length > 0) {
-			// parse command:
-			Matcher m = diceParts.matcher(args[0]);
-			if(m.find()) {
-				if (m.group(1) == null) {
-					// did not find a 'd' in the argument, so group 3 is the count
-					count = Integer.parseInt(m.group(3));
-				} else {
-					sides = Integer.parseInt(m.group(3));
-					if (m.group(2) != null) {
-						count = Integer.parseInt(m.group(2));
-					}
-				}
-				if (m.group(6) != null) {
-					mod = Integer.parseInt(m.group(6));
-					if (m.group(5).charAt(0) == '-') {
-						mod *= -1;
-					}
-				}
-			}
-		}
-	
-        /* Check for arguments representing dice count * /
-        if (args.length > 0 && Perms.canRollMultiple(sender)) {
-            for (String arg : args) {
-                if (arg.matches("^[0-9]+$")) {
-                    count = Integer.parseInt(arg);
-                    break;
-                } else if (arg.matches("^[0-9]+d[0-9]+")) {
-                    int d = arg.indexOf('d');
-                    count = Integer.parseInt(arg.substring(0, d));
-                    break;
-                }
+        }
+
+        long start = System.nanoTime();
+        if (args.length > 1 || (args.length == 1 && args[0].indexOf(LABEL_SEPARATOR) > 0)) {
+            rollBatch(config, sender, args, start);
+            return true;
+        }
+        DiceExpression expression;
+        try {
+            expression = args.length > 0
+                    ? resolve(config, sender, args[0])
+                    : config.getParser().getDefault();
+        } catch (IllegalArgumentException ex) {
+            metrics.countError();
+            sender.sendMessage(ChatColor.RED + ex.getMessage());
+            return true;
+        }
+        start = metrics.time(RollMetrics.Stage.PARSE, start);
+        if (args.length > 0) {
+            completer.record(sender, args[0]);
+        }
+
+        /* Check the parsed values against the defined maximums. */
+        if (expression.getMaxSides() <= config.getMaximumSides()
+                && canRollBulk(config, sender, expression)) {
+            rollBulk(config, sender, expression, start);
+            return true;
+        }
+        if (!checkMaximums(config, sender, expression)) {
+            metrics.countError();
+            return false;
+        }
+
+        /* Roll the dice and handle the outcome */
+        roll(config, sender, expression, start);
+        return true;
+    }
+
+    /**
+     * Turn an argument into an expression: the player's macro of that name if
+     * there is one, otherwise the parsed dice notation.
+     *
+     * @param config The configuration snapshot for this roll
+     * @param sender The user rolling the dice
+     * @param notation A macro name or dice notation
+     * @return The compiled expression
+     * @throws IllegalArgumentException If the notation is invalid
+     */
+    private DiceExpression resolve(Config config, CommandSender sender, String notation) {
+        DiceParser parser = config.getParser();
+        MacroStore.Macro macro = sender instanceof Player
+                ? plugin.getMacroStore().get(((Player) sender).getUniqueId(), notation)
+                : null;
+        return macro != null ? macro.compile(parser) : parser.parse(notation);
+    }
+
+    /**
+     * Roll several expressions at once. Usage: "/roll [label:]expression
+     * [label:]expression ...", e.g. "/roll attack:1d20+5 damage:2d6+3". The
+     * whole batch costs one cooldown token, fires one DiceRolled event and is
+     * delivered as one message, one line per expression, to one set of
+     * recipients.
+     *
+     * @param config The configuration snapshot for this roll
+     * @param sender The user rolling the dice
+     * @param args The expressions, each optionally labeled
+     * @param start System.nanoTime() when parsing began
+     */
+    private void rollBatch(Config config, CommandSender sender, String[] args, long start) {
+        RollMetrics metrics = plugin.getMetrics();
+        if (args.length > BATCH_MAXIMUM) {
+            metrics.countError();
+            sender.sendMessage(ChatColor.RED + "You can't roll more than "
+                    + BATCH_MAXIMUM + " expressions at once!");
+            return;
+        }
+        DiceExpression[] expressions = new DiceExpression[args.length];
+        String[] labels = new String[args.length];
+        for (int i = 0; i < args.length; ++i) {
+            int split = args[i].indexOf(LABEL_SEPARATOR);
+            String notation = split > 0 ? args[i].substring(split + 1) : args[i];
+            if (split > 0) {
+                labels[i] = args[i].substring(0, Math.min(split, LABEL_LENGTH));
+            }
+            try {
+                expressions[i] = resolve(config, sender, notation);
+            } catch (IllegalArgumentException ex) {
+                metrics.countError();
+                sender.sendMessage(ChatColor.RED + notation + ": " + ex.getMessage());
+                return;
+            }
+            if (!checkMaximums(config, sender, expressions[i])) {
+                metrics.countError();
+                return;
             }
+            completer.record(sender, notation);
         }
+        start = metrics.time(RollMetrics.Stage.PARSE, start);
 
-        /* Check for arguments representing dice sides * /
-        if (args.length > 0 && Perms.canRollAnyDice(sender)) {
-            for (String arg : args) {
-                if (arg.matches("^.*d[0-9]+$")) {
-                    int d = arg.indexOf('d');
-                    sides = Integer.parseInt(arg.substring(d + 1));
-                    break;
-                }
+        DiceRoll[] results = new DiceRoll[args.length];
+        for (int i = 0; i < results.length; ++i) {
+            results[i] = expressions[i].roll(config.getRandom().current());
+            record(sender, results[i]);
+        }
+        start = metrics.time(RollMetrics.Stage.ROLL, start);
+
+        StringBuilder combined = new StringBuilder();
+        for (int i = 0; i < results.length; ++i) {
+            String line = formatString(config, sender, results[i]);
+            if (line == null) {
+                continue;
+            }
+            if (combined.length() > 0) {
+                combined.append('\n');
+            }
+            if (labels[i] != null) {
+                combined.append(ChatColor.GRAY).append(labels[i]).append(": ").append(ChatColor.RESET);
+            }
+            combined.append(line);
+        }
+        start = metrics.time(RollMetrics.Stage.FORMAT, start);
+        if (combined.length() == 0) {
+            return;
+        }
+        String finalOut = combined.toString();
+
+        if (DiceRolled.hasListeners()) {
+            Bukkit.getServer().getPluginManager().callEvent(new DiceRolled(finalOut, results, labels));
+        }
+        fireAsync(sender, results, labels);
+        start = metrics.time(RollMetrics.Stage.EVENT, start);
+
+        if (Perms.broadcast(sender)) {
+            broadcast(config, sender, finalOut);
+        } else {
+            message(sender, finalOut.replace("{CHANNEL}", ""));
+        }
+        metrics.time(RollMetrics.Stage.BROADCAST, start);
+        for (int i = 0; i < results.length; ++i) {
+            metrics.countRoll(RollMetrics.Source.GAME);
+        }
+    }
+
+    /**
+     * Fire AsyncDiceRolled for each roll on a background thread, if anything
+     * listens to it. The events are built here, so they see the sender as it
+     * was when the dice were rolled.
+     *
+     * @param sender The user that rolled the dice
+     * @param results The rolls
+     * @param labels The label of each roll, or null if none have labels
+     */
+    private void fireAsync(CommandSender sender, DiceRoll[] results, String[] labels) {
+        if (!AsyncDiceRolled.hasListeners()) {
+            return;
+        }
+        AsyncDiceRolled.Source source;
+        UUID id;
+        if (sender instanceof Player) {
+            source = AsyncDiceRolled.Source.PLAYER;
+            id = ((Player) sender).getUniqueId();
+        } else {
+            source = AsyncDiceRolled.Source.CONSOLE;
+            id = null;
+        }
+        final AsyncDiceRolled[] events = new AsyncDiceRolled[results.length];
+        for (int i = 0; i < results.length; ++i) {
+            events[i] = new AsyncDiceRolled(source, id, sender.getName(), results[i],
+                    labels == null ? null : labels[i]);
+        }
+        plugin.getTaskScheduler().runAsync(() -> {
+            for (AsyncDiceRolled event : events) {
+                Bukkit.getServer().getPluginManager().callEvent(event);
+            }
+        });
+    }
+
+    /**
+     * Write a roll to the journal, if it is enabled.
+     *
+     * @param sender The user that rolled the dice
+     * @param result The results of the roll
+     */
+    private void record(CommandSender sender, DiceRoll result) {
+        RollJournal journal = plugin.getJournal();
+        if (journal == null) {
+            return;
+        }
+        if (sender instanceof Player) {
+            journal.append(RollJournal.SOURCE_PLAYER, ((Player) sender).getUniqueId(), result);
+        } else {
+            journal.append(RollJournal.SOURCE_CONSOLE, null, result);
+        }
+    }
+
+    /**
+     * Save, replace or delete a macro. Usage: "/roll save <name> <expression>",
+     * or "/roll save <name>" to delete it. Names must start with a letter,
+     * may not be a subcommand and may not be valid dice notation themselves.
+     *
+     * @param player The player saving the macro
+     * @param args The command arguments, starting with "save"
+     */
+    private void saveMacro(Player player, String[] args) {
+        String name = args[1];
+        MacroStore macros = plugin.getMacroStore();
+        if (args.length == 2) {
+            if (macros.remove(player.getUniqueId(), name)) {
+                completer.invalidate(player.getUniqueId());
+                player.sendMessage(ChatColor.GOLD + "Deleted macro " + ChatColor.WHITE + name);
+            } else {
+                player.sendMessage(ChatColor.RED + "You have no macro called " + name);
+            }
+            return;
+        }
+        if (!isMacroName(name)) {
+            player.sendMessage(ChatColor.RED + "Macro names are up to " + MACRO_NAME_LENGTH
+                    + " letters, digits, '-' or '_', starting with a letter,"
+                    + " and can't be a subcommand or dice notation.");
+            return;
+        }
+        StringBuilder source = new StringBuilder();
+        for (int i = 2; i < args.length; ++i) {
+            source.append(args[i]);
+        }
+        MacroStore.Macro macro = new MacroStore.Macro(name, source.toString());
+        Config config = plugin.getPluginConfig();
+        DiceExpression expression;
+        try {
+            expression = macro.compile(config.getParser());
+        } catch (IllegalArgumentException ex) {
+            player.sendMessage(ChatColor.RED + ex.getMessage());
+            return;
+        }
+        if (!canRollBulk(config, player, expression) && !checkMaximums(config, player, expression)) {
+            return;
+        }
+        if (!macros.put(player.getUniqueId(), macro)) {
+            player.sendMessage(ChatColor.RED + "You can't save more than "
+                    + MacroStore.MAXIMUM + " macros.");
+            return;
+        }
+        completer.invalidate(player.getUniqueId());
+        player.sendMessage(ChatColor.GOLD + "Saved macro " + ChatColor.WHITE + name
+                + ChatColor.GOLD + " as " + ChatColor.WHITE + macro.getExpression());
+    }
+
+    /**
+     * @return Whether a word may be used as a macro name
+     */
+    private boolean isMacroName(String name) {
+        if (name.isEmpty() || name.length() > MACRO_NAME_LENGTH
+                || !Character.isLetter(name.charAt(0))) {
+            return false;
+        }
+        for (int i = 1; i < name.length(); ++i) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_') {
+                return false;
             }
-        }*/
+        }
+        for (String subcommand : SUBCOMMANDS) {
+            if (subcommand.equalsIgnoreCase(name)) {
+                return false;
+            }
+        }
+        try {
+            plugin.getPluginConfig().getParser().parse(name);
+            return false;
+        } catch (IllegalArgumentException ex) {
+            return true;
+        }
+    }
 
-        /* Check the loaded or parsed values against the defined maximums. */
-        if (count > plugin.getPluginConfig().getMaximumCount()) {
+    /**
+     * List a player's saved macros.
+     *
+     * @param player The player asking
+     */
+    private void showMacros(Player player) {
+        Map<String, MacroStore.Macro> macros = plugin.getMacroStore().list(player.getUniqueId());
+        if (macros.isEmpty()) {
+            player.sendMessage(ChatColor.GOLD + "You have no macros. Save one with "
+                    + ChatColor.WHITE + "/roll save <name> <expression>");
+            return;
+        }
+        player.sendMessage(ChatColor.GOLD + "Your macros:");
+        for (MacroStore.Macro macro : macros.values()) {
+            player.sendMessage(ChatColor.WHITE + macro.getName() + ChatColor.GRAY + ": " + macro.getExpression());
+        }
+    }
+
+    /**
+     * Check an expression against the configured maximum count and sides,
+     * telling the user if it exceeds them.
+     *
+     * @param config The configuration snapshot for this roll
+     * @param sender The user rolling the dice
+     * @param expression The parsed expression
+     * @return Whether the expression is within the limits
+     */
+    private boolean checkMaximums(Config config, CommandSender sender, DiceExpression expression) {
+        if (expression.getDiceCount() > config.getMaximumCount()) {
             sender.sendMessage(ChatColor.RED
                     + "You can't roll that many dice at once!");
             return false;
         }
-        if (sides > plugin.getPluginConfig().getMaximumSides()) {
+        if (expression.getMaxSides() > config.getMaximumSides()) {
             sender.sendMessage(ChatColor.RED
                     + "You can't roll dice with that many sides!");
             return false;
         }
-
-        /* Roll the dice and handle the outcome */
-        roll(sender, Math.max(1, count), Math.max(2, sides), mod);
         return true;
     }
 
+    /**
+     * Show the exact odds of an expression. Usage: "/roll odds <expression>
+     * [>=|<=|=|>|< target]", where the comparison may be written with or
+     * without spaces, e.g. "/roll odds 4d6kh3 >=15".
+     *
+     * @param sender The user asking
+     * @param args The command arguments, starting with "odds"
+     */
+    private void showOdds(CommandSender sender, String[] args) {
+        StringBuilder query = new StringBuilder();
+        for (int i = 1; i < args.length; ++i) {
+            query.append(args[i]);
+        }
+        int split = 0;
+        while (split < query.length() && "<>=".indexOf(query.charAt(split)) < 0) {
+            ++split;
+        }
+        String op = null;
+        int target = 0;
+        if (split < query.length()) {
+            int digits = split + 1;
+            if (digits < query.length() && query.charAt(digits) == '=') {
+                ++digits;
+            }
+            op = query.substring(split, digits);
+            try {
+                target = Integer.parseInt(query.substring(digits));
+            } catch (NumberFormatException ex) {
+                sender.sendMessage(ChatColor.RED + "Usage: /roll odds <expression> [>=|<=|= target]");
+                return;
+            }
+        }
+
+        Distribution distribution;
+        try {
+            Config config = plugin.getPluginConfig();
+            DiceExpression expression = config.getParser().parse(query.substring(0, split));
+            if (!checkMaximums(config, sender, expression)) {
+                return;
+            }
+            distribution = odds.distribution(expression);
+        } catch (IllegalArgumentException ex) {
+            sender.sendMessage(ChatColor.RED + ex.getMessage());
+            return;
+        }
+
+        sender.sendMessage(String.format(Locale.ROOT,
+                "%sOdds for %s: %smean %.2f, variance %.2f, range %d to %d",
+                ChatColor.GOLD, query.substring(0, split), ChatColor.WHITE,
+                distribution.mean(), distribution.variance(),
+                distribution.getMin(), distribution.getMax()));
+        if (op == null) {
+            return;
+        }
+        double chance;
+        switch (op) {
+            case ">=":
+                chance = distribution.atLeast(target);
+                break;
+            case ">":
+                chance = distribution.atLeast(target + 1);
+                break;
+            case "<=":
+                chance = distribution.atMost(target);
+                break;
+            case "<":
+                chance = distribution.atMost(target - 1);
+                break;
+            default:
+                chance = distribution.probability(target);
+                op = "=";
+        }
+        sender.sendMessage(String.format(Locale.ROOT, "%sP(total %s %d) = %s%.4g%%",
+                ChatColor.GOLD, op, target, ChatColor.WHITE, chance * 100));
+    }
+
+    /**
+     * Look up recent rolls in the journal. Usage: "/roll history <player>
+     * [since] [limit]", where since is a duration such as "30m", "2h" or "1d"
+     * (default one hour), and the player may also be a Discord user ID. The
+     * query runs asynchronously and the answer is sent on the main thread.
+     *
+     * @param sender The user asking
+     * @param args The command arguments, starting with "history"
+     */
+    private void showHistory(final CommandSender sender, String[] args) {
+        final String name = args[1];
+        final UUID id;
+        if (name.length() >= 15 && name.chars().allMatch(Character::isDigit)) {
+            try {
+                id = new UUID(0, Long.parseLong(name));
+            } catch (NumberFormatException ex) {
+                sender.sendMessage(ChatColor.RED + "Usage: /roll history <player> [30m|2h|1d] [limit]");
+                return;
+            }
+        } else {
+            OfflinePlayer player = plugin.getServer().getOfflinePlayerIfCached(name);
+            if (player == null) {
+                sender.sendMessage(ChatColor.RED + "Unknown player: " + name);
+                return;
+            }
+            id = player.getUniqueId();
+        }
+        long span = args.length > 2 ? parseDuration(args[2]) : 3600000L;
+        int limit = HISTORY_LIMIT;
+        try {
+            if (args.length > 3) {
+                limit = Math.max(1, Math.min(HISTORY_MAXIMUM, Integer.parseInt(args[3])));
+            }
+        } catch (NumberFormatException ex) {
+            span = -1;
+        }
+        if (span < 0) {
+            sender.sendMessage(ChatColor.RED + "Usage: /roll history <player> [30m|2h|1d] [limit]");
+            return;
+        }
+
+        final long since = System.currentTimeMillis() - span;
+        final int max = limit;
+        final RollHistory history = plugin.getRollHistory();
+        plugin.getTaskScheduler().runAsync(() -> {
+            final List<String> lines = new ArrayList<>();
+            try {
+                List<RollJournal.Record> records = history.query(id, since, max);
+                lines.add(ChatColor.GOLD + "Last " + records.size() + " roll(s) by " + name
+                        + " since " + HISTORY_TIME.format(Instant.ofEpochMilli(since)) + ":");
+                for (RollJournal.Record record : records) {
+                    lines.add(formatRecord(record));
+                }
+            } catch (IOException ex) {
+                plugin.getLogger().log(Level.WARNING, "Could not read the roll journal", ex);
+                lines.add(ChatColor.RED + "Could not read the roll journal.");
+            }
+            plugin.getTaskScheduler().runFor(sender, () -> {
+                for (String line : lines) {
+                    sender.sendMessage(line);
+                }
+            });
+        });
+    }
+
+    /**
+     * @param text A duration such as "90s", "30m", "2h" or "1d"
+     * @return The duration in milliseconds, or -1 if it is invalid
+     */
+    private static long parseDuration(String text) {
+        if (text.length() < 2) {
+            return -1;
+        }
+        long unit;
+        switch (Character.toLowerCase(text.charAt(text.length() - 1))) {
+            case 's':
+                unit = 1000L;
+                break;
+            case 'm':
+                unit = 60000L;
+                break;
+            case 'h':
+                unit = 3600000L;
+                break;
+            case 'd':
+                unit = 86400000L;
+                break;
+            default:
+                return -1;
+        }
+        try {
+            long amount = Long.parseLong(text.substring(0, text.length() - 1));
+            return amount < 0 ? -1 : Math.multiplyExact(amount, unit);
+        } catch (NumberFormatException | ArithmeticException ex) {
+            return -1;
+        }
+    }
+
+    private static String formatRecord(RollJournal.Record record) {
+        StringBuilder out = new StringBuilder();
+        out.append(ChatColor.GRAY).append('[')
+                .append(HISTORY_TIME.format(Instant.ofEpochMilli(record.getTime())))
+                .append("] ").append(ChatColor.WHITE).append(record.getExpression())
+                .append(ChatColor.GRAY).append(" = ").append(ChatColor.GREEN).append(record.getTotal())
+                .append(ChatColor.GRAY).append(" (");
+        int[] values = record.getValues();
+        for (int i = 0; i < values.length; ++i) {
+            if (i > 0) {
+                out.append(", ");
+            }
+            if (record.isHistogram()) {
+                out.append(i + 1).append('\u00d7');
+            }
+            out.append(values[i]);
+        }
+        return out.append(')').toString();
+    }
+
     /**
      * Roll a set of dice for a user, and either broadcast the results publicly
      * or send them privately, depending on the user's permissions.
      *
+     * @param config The configuration snapshot for this roll
+     * @param sender The user rolling the dice
+     * @param expression The compiled dice expression to roll
+     * @param start System.nanoTime() at the end of parsing
+     */
+    private void roll(Config config, CommandSender sender, DiceExpression expression, long start) {
+        RollMetrics metrics = plugin.getMetrics();
+        DiceRoll result = expression.roll(config.getRandom().current());
+        record(sender, result);
+        start = metrics.time(RollMetrics.Stage.ROLL, start);
+
+        String finalOut = formatString(config, sender, result);
+        start = metrics.time(RollMetrics.Stage.FORMAT, start);
+        if (finalOut == null) {
+            return;
+        }
+
+        // send out the custom events, if anyone is listening
+        if (DiceRolled.hasListeners()) {
+            Bukkit.getServer().getPluginManager().callEvent(new DiceRolled(finalOut, result));
+        }
+        fireAsync(sender, new DiceRoll[] {result}, null);
+        start = metrics.time(RollMetrics.Stage.EVENT, start);
+
+        if (Perms.broadcast(sender)) {
+            broadcast(config, sender, finalOut);
+        } else {
+            message(sender, finalOut.replace("{CHANNEL}", ""));
+        }
+        metrics.time(RollMetrics.Stage.BROADCAST, start);
+        metrics.countRoll(RollMetrics.Source.GAME);
+    }
+
+    /**
+     * Check whether an expression should be rolled in bulk mode: it must be a
+     * plain pool above maximum.count but within bulk.maximum.
+     *
+     * @param config The configuration snapshot for this roll
+     * @param sender The user rolling the dice
+     * @param expression The parsed expression
+     * @return Whether to roll it as a histogram
+     */
+    private boolean canRollBulk(Config config, CommandSender sender, DiceExpression expression) {
+        return config.isBulkEnabled()
+                && expression.getDiceCount() > config.getMaximumCount()
+                && expression.getDiceCount() <= config.getBulkMaximum()
+                && expression.isPlainPool()
+                && Perms.canRollBulk(sender);
+    }
+
+    /**
+     * Roll a large pool as a face histogram, without materializing each die,
+     * and deliver it like an ordinary roll.
+     *
+     * @param config The configuration snapshot for this roll
      * @param sender The user rolling the dice
-     * @param count The number of dice to roll
-     * @param sides The number of sides per die
-     * @param mod Modifier for the end result
+     * @param expression A plain "NdS+M" pool
+     * @param start System.nanoTime() at the end of parsing
      */
-    private void roll(CommandSender sender, int count, int sides, int mod) {
-        Integer[] result = new Integer[count];
-        for (int i = 0; i < count; ++i) {
-            result[i] = random.nextInt(sides) + 1;
+    private void rollBulk(Config config, CommandSender sender, DiceExpression expression, long start) {
+        RollMetrics metrics = plugin.getMetrics();
+        final BulkRoll result = BulkRoll.roll(config.getRandom().current(),
+                expression.getDiceCount(), expression.getSides(), expression.getModifier());
+
+        RollJournal journal = plugin.getJournal();
+        if (journal != null) {
+            if (sender instanceof Player) {
+                journal.append(RollJournal.SOURCE_PLAYER, ((Player) sender).getUniqueId(),
+                        expression.getSource(), result);
+            } else {
+                journal.append(RollJournal.SOURCE_CONSOLE, null, expression.getSource(), result);
+            }
         }
 
-        String finalOut = formatString(sender, result, sides, mod);
+        start = metrics.time(RollMetrics.Stage.ROLL, start);
 
-        // send out a custom event
-        DiceRolled event = new DiceRolled(finalOut, result);
-        // Call the event
-        Bukkit.getServer().getPluginManager().callEvent(event);
+        MessageTemplate template = Perms.broadcast(sender)
+                ? config.getBroadcastMultiTemplate()
+                : config.getPrivateTemplate();
+        String finalOut = RollFormatter.render(config, template, sender, result);
+        start = metrics.time(RollMetrics.Stage.FORMAT, start);
+        if (finalOut == null) {
+            return;
+        }
+
+        if (BulkDiceRolled.hasListeners()) {
+            Bukkit.getServer().getPluginManager().callEvent(new BulkDiceRolled(finalOut, result));
+        }
+        start = metrics.time(RollMetrics.Stage.EVENT, start);
 
         if (Perms.broadcast(sender)) {
-            broadcast(sender, finalOut);
+            broadcast(config, sender, finalOut);
         } else {
             message(sender, finalOut.replace("{CHANNEL}", ""));
         }
+        metrics.time(RollMetrics.Stage.BROADCAST, start);
+        metrics.countRoll(RollMetrics.Source.GAME);
     }
 
     /**
      * Show personalized usage help to the user, taking into account his or her
-     * permissions.
+     * permissions: the dice notation, then every subcommand they may use.
      *
      * @param sender The user to help
      */
@@ -414,63 +901,68 @@ public class RollCommand implements CommandExecutor, TabCompleter {
         switch (perms) {
             case 1:
                 sender.sendMessage(ChatColor.RED + "Usage: /roll [count]");
-                return;
+                break;
             case 2:
                 sender.sendMessage(ChatColor.RED + "Usage: /roll [d<sides>]");
-                return;
+                break;
             case 3:
-                sender.sendMessage(ChatColor.RED + "Usage: /roll [count] [d<sides>]");
-                return;
+                sender.sendMessage(ChatColor.RED + "Usage: /roll [count][d<sides>], e.g. /roll 3d20");
+                break;
             default:
                 sender.sendMessage(ChatColor.RED + "Usage: /roll");
         }
+        if (perms != 0) {
+            sender.sendMessage(ChatColor.GOLD + "/roll <expression>" + ChatColor.WHITE
+                    + " - dice terms joined with + or -, e.g. 2d6+3 or 1d20+1d4-1");
+            sender.sendMessage(ChatColor.GRAY + "  After NdS: khK/klK keep, dhK/dlK drop the K highest/lowest,"
+                    + " ! explodes on a maximum roll, rK rerolls once a die of K or less");
+            sender.sendMessage(ChatColor.GOLD + "/roll [label:]<expression> ..." + ChatColor.WHITE
+                    + " - roll up to " + BATCH_MAXIMUM + " expressions at once, e.g. hit:1d20+5 dmg:2d6");
+        }
+        sender.sendMessage(ChatColor.GOLD + "/roll odds <expression> [>=|<=|= target]" + ChatColor.WHITE
+                + " - show the exact odds of a roll");
+        if (sender instanceof Player) {
+            sender.sendMessage(ChatColor.GOLD + "/roll save <name> [expression]" + ChatColor.WHITE
+                    + " - save a macro, or delete it without an expression");
+            sender.sendMessage(ChatColor.GOLD + "/roll <name>" + ChatColor.WHITE + ", "
+                    + ChatColor.GOLD + "/roll macros" + ChatColor.WHITE + " - roll or list your macros");
+        }
+        if (Perms.canViewHistory(sender)) {
+            sender.sendMessage(ChatColor.GOLD + "/roll history <player> [30m|2h|1d] [limit]" + ChatColor.WHITE
+                    + " - show recent rolls of a player or Discord user ID");
+        }
+        if (Perms.canViewStats(sender)) {
+            sender.sendMessage(ChatColor.GOLD + "/roll stats" + ChatColor.WHITE + " - show roll statistics");
+        }
+        if (Perms.canReload(sender)) {
+            sender.sendMessage(ChatColor.GOLD + "/roll reload" + ChatColor.WHITE + " - reload the configuration");
+        }
     }
 
     /**
-     * Square an input. Useful for decluttering the code.
-     *
-     * @param input The number to be squared
-     * @return The result
-     */
-    private int square(int input) {
-        return input * input;
-    }
-
-    /**
-     * Calculate the sum of an array of numbers.
-     *
-     * @param roll The array of numbers
-     * @return The sum
+     * Complete "/roll" arguments from the completer's prefix tries. The tries
+     * hand out shared, unmodifiable lists, but callers of a TabCompleter may
+     * sort or filter the list they get back, so a match is copied before it
+     * is returned. An empty result is returned as is: there is nothing to
+     * copy, and Bukkit's own Command.tabComplete already returns an immutable
+     * empty list, so callers must cope with one.
      */
-    private int sum(Integer[] roll) {
-        int t = 0;
-        for (int i : roll) {
-            t += i;
-        }
-        return t;
-    }
-
     @Override
     public List<String> onTabComplete(CommandSender cs, Command cmnd, String string, String[] args) {
-        List<String> res = null;
-
         if (args.length == 1) {
-            res = new ArrayList();
-            res.add("1d6");
-            res.add("help");
-            if (Perms.canReload(cs)) {
-                res.add("reload");
-            }
-        } else if (args.length == 2 && args[0].matches("d[0-9]*")) {
-            res.add("[count]");
+            return copyIfNotEmpty(completer.completeFirst(cs, args[0]));
         }
-
-        if (res != null && !res.isEmpty()) {
-            res = res.stream()
-                    .filter(e -> e != null && e.startsWith(args[args.length - 1]))
-                    .collect(Collectors.toList());
+        if (args.length == 2 && args[0].equalsIgnoreCase("odds")) {
+            return copyIfNotEmpty(completer.completeExpression(cs, args[1]));
+        }
+        if (args.length == 2 && args[0].equalsIgnoreCase("history") && Perms.canViewHistory(cs)) {
+            return null; // player names
         }
-        return res;
+        return Collections.emptyList();
+    }
+
+    private static List<String> copyIfNotEmpty(List<String> words) {
+        return words.isEmpty() ? words : new ArrayList<>(words);
     }
 
 }
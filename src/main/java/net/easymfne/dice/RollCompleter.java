@@ -0,0 +1,214 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+/**
+ * Tab completion for "/roll". Each player gets a pair of prefix tries, one
+ * for the first argument (subcommands, macros and expressions) and one for
+ * places that only take an expression. The tries hold the player's recently
+ * rolled expressions first, then their macros, then the common notations, and
+ * are rebuilt when the player rolls something new, changes a macro or has
+ * their permissions change, so that each keystroke is a walk down a trie that
+ * returns a ready-made list.
+ */
+public class RollCompleter implements Listener {
+
+    /** Number of recently rolled expressions remembered per player. */
+    static final int RECENT_SIZE = 16;
+
+    /** Most suggestions offered at once. */
+    private static final int LIMIT = 24;
+
+    private static final List<String> COMMON = Arrays.asList(
+            "1d20", "1d6", "2d6", "3d6", "4d6", "4d6kh3", "1d4", "1d8",
+            "1d10", "1d12", "1d100", "2d20kh1", "2d20kl1");
+
+    private static final PrefixTrie COMMON_TRIE = PrefixTrie.build(COMMON, LIMIT);
+
+    /**
+     * A player's recent expressions and the tries built from them.
+     */
+    private static final class Completions {
+
+        /** Ring buffer of recent expressions; next is the slot to write. */
+        final String[] recent = new String[RECENT_SIZE];
+        int next;
+        int perms = -1;
+        volatile PrefixTrie first;
+        volatile PrefixTrie expressions;
+
+        /**
+         * @return Whether the expression was not already the latest
+         */
+        boolean add(String expression) {
+            String last = recent[(next + RECENT_SIZE - 1) % RECENT_SIZE];
+            if (expression.equalsIgnoreCase(last)) {
+                return false;
+            }
+            recent[next] = expression;
+            next = (next + 1) % RECENT_SIZE;
+            return true;
+        }
+
+        /** Rebuild the tries for the given permission snapshot. */
+        void rebuild(int perms, List<String> macros, List<String> subcommands) {
+            List<String> words = new ArrayList<>(RECENT_SIZE + COMMON.size());
+            for (int i = 1; i <= RECENT_SIZE; ++i) {
+                String expression = recent[(next + RECENT_SIZE - i) % RECENT_SIZE];
+                if (expression != null) {
+                    words.add(expression);
+                }
+            }
+            int recentCount = words.size();
+            words.addAll(COMMON);
+            expressions = PrefixTrie.build(words, LIMIT);
+            words.addAll(recentCount, macros);
+            words.addAll(recentCount + macros.size(), subcommands);
+            first = PrefixTrie.build(words, LIMIT);
+            this.perms = perms;
+        }
+    }
+
+    private final Map<UUID, Completions> players = new ConcurrentHashMap<>();
+    private final MacroStore macros;
+
+    /**
+     * @param macros The players' saved macros
+     */
+    public RollCompleter(MacroStore macros) {
+        this.macros = macros;
+    }
+
+    /**
+     * Remember an expression a player has rolled.
+     *
+     * @param sender The user that rolled
+     * @param expression The expression as typed
+     */
+    public void record(CommandSender sender, String expression) {
+        if (!(sender instanceof Player)) {
+            return;
+        }
+        Completions completions = players.computeIfAbsent(
+                ((Player) sender).getUniqueId(), id -> new Completions());
+        synchronized (completions) {
+            if (completions.add(expression)) {
+                completions.perms = -1;
+            }
+        }
+    }
+
+    /**
+     * Rebuild a player's tries on their next completion, after their macros
+     * have changed.
+     *
+     * @param player The player's UUID
+     */
+    public void invalidate(UUID player) {
+        Completions completions = players.get(player);
+        if (completions != null) {
+            synchronized (completions) {
+                completions.perms = -1;
+            }
+        }
+    }
+
+    /**
+     * @param sender The user pressing tab
+     * @param prefix The first argument so far
+     * @return Subcommands and expressions for the first argument, in an
+     *         unmodifiable list shared between calls
+     */
+    public List<String> completeFirst(CommandSender sender, String prefix) {
+        if (!(sender instanceof Player)) {
+            return PrefixTrie.build(subcommands(sender), LIMIT).complete(prefix);
+        }
+        return current((Player) sender).first.complete(prefix);
+    }
+
+    /**
+     * @param sender The user pressing tab
+     * @param prefix The expression so far
+     * @return Expressions only, in an unmodifiable list shared between
+     *         calls
+     */
+    public List<String> completeExpression(CommandSender sender, String prefix) {
+        if (!(sender instanceof Player)) {
+            return COMMON_TRIE.complete(prefix);
+        }
+        return current((Player) sender).expressions.complete(prefix);
+    }
+
+    /**
+     * Get a player's completions, rebuilding them if anything changed.
+     */
+    private Completions current(Player player) {
+        Completions completions = players.computeIfAbsent(player.getUniqueId(), id -> new Completions());
+        int perms = Perms.snapshot(player);
+        synchronized (completions) {
+            if (completions.perms != perms) {
+                List<String> names = new ArrayList<>();
+                for (MacroStore.Macro macro : macros.list(player.getUniqueId()).values()) {
+                    names.add(macro.getName());
+                }
+                completions.rebuild(perms, names, subcommands(player));
+            }
+        }
+        return completions;
+    }
+
+    /**
+     * @return The subcommands the user may use
+     */
+    private static List<String> subcommands(CommandSender sender) {
+        List<String> subcommands = new ArrayList<>();
+        subcommands.add("help");
+        subcommands.add("odds");
+        if (sender instanceof Player) {
+            subcommands.add("macros");
+            subcommands.add("save");
+        }
+        if (Perms.canViewHistory(sender)) {
+            subcommands.add("history");
+        }
+        if (Perms.canViewStats(sender)) {
+            subcommands.add("stats");
+        }
+        if (Perms.canReload(sender)) {
+            subcommands.add("reload");
+        }
+        return subcommands;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        players.remove(event.getPlayer().getUniqueId());
+    }
+
+}
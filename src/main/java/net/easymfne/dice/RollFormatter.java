@@ -0,0 +1,313 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.serializer.legacy.LegacyComponentSerializer;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+/**
+ * Renders roll results into the compiled message templates, coloring each
+ * die with the configured natColors. Shared by in-game and Discord rolls.
+ */
+public final class RollFormatter {
+
+    private static final LegacyComponentSerializer LEGACY = LegacyComponentSerializer.legacySection();
+
+    private RollFormatter() {
+    }
+
+    /**
+     * Convert a rendered message into a component, so that it is parsed once
+     * however many players it is sent to.
+     *
+     * @param message A rendered message with legacy color codes
+     * @return The message as a component, without the {CHANNEL} tag
+     */
+    public static Component toComponent(String message) {
+        return LEGACY.deserialize(message.replace("{CHANNEL}", ""));
+    }
+
+    /**
+     * Render a compiled template in a single pass.
+     *
+     * @param config The configuration supplying the natColors
+     * @param template The template, or null if the message is disabled
+     * @param sender The user that rolled, or null if not a CommandSender
+     * @param name The name of the user that rolled
+     * @param roll The results of the roll
+     * @return The rendered message, or null if the template is empty
+     */
+    public static String render(Config config, MessageTemplate template,
+            CommandSender sender, String name, DiceRoll roll) {
+        if (template == null) {
+            return null;
+        }
+        return template.render(values(config, sender, name, roll));
+    }
+
+    /**
+     * Render the in-game and Discord forms of a compiled template in a single
+     * pass. In the Discord form, dice that rolled their highest face are
+     * shown in bold and dice that rolled a one in italics.
+     *
+     * @param config The configuration supplying the natColors
+     * @param template The template, or null if the message is disabled
+     * @param sender The user that rolled, or null if not a CommandSender
+     * @param name The name of the user that rolled
+     * @param roll The results of the roll
+     * @return The rendered message, or null if the template is empty
+     */
+    public static MessageTemplate.Rendered renderBoth(Config config, MessageTemplate template,
+            CommandSender sender, String name, DiceRoll roll) {
+        if (template == null) {
+            return null;
+        }
+        return template.renderBoth(values(config, sender, name, roll));
+    }
+
+    private static MessageTemplate.Values values(final Config config,
+            final CommandSender sender, final String name, final DiceRoll roll) {
+        final int mod = roll.getModifier();
+        return (placeholder, out, discord) -> {
+            switch (placeholder) {
+                case PLAYER:
+                    out.append(name);
+                    if (discord != null) {
+                        MessageTemplate.appendDiscord(name, discord);
+                    }
+                    break;
+                case NICKNAME:
+                    String nickname = sender == null ? name : formatName(sender);
+                    out.append(nickname);
+                    if (discord != null) {
+                        MessageTemplate.appendDiscord(nickname, discord);
+                    }
+                    break;
+                case RESULT:
+                    if (config.natColors_enabled) {
+                        appendResults(config, out, discord, roll);
+                    } else {
+                        out.append(roll.getRoll(0) + mod);
+                        if (discord != null) {
+                            discord.append(roll.getRoll(0) + mod);
+                        }
+                    }
+                    break;
+                case COUNT:
+                    out.append(roll.getCount());
+                    if (discord != null) {
+                        discord.append(roll.getCount());
+                    }
+                    break;
+                case SIDES:
+                    out.append(roll.getSides());
+                    if (discord != null) {
+                        discord.append(roll.getSides());
+                    }
+                    break;
+                case MOD:
+                    appendModifier(out, mod);
+                    if (discord != null) {
+                        appendModifier(discord, mod);
+                    }
+                    break;
+                case TOTAL:
+                    if (config.natColors_enabled) {
+                        appendResultTotal(config, out, discord, roll);
+                    } else {
+                        out.append(roll.getTotal());
+                        if (discord != null) {
+                            discord.append(roll.getTotal());
+                        }
+                    }
+                    break;
+            }
+        };
+    }
+
+    private static void appendModifier(StringBuilder out, int mod) {
+        if (mod > 0) {
+            out.append('+');
+        }
+        if (mod != 0) {
+            out.append(mod);
+        }
+    }
+
+    /**
+     * Append a number to a Discord message, in bold if it is the best result
+     * possible or in italics if it is the worst.
+     */
+    private static void appendEmphasized(StringBuilder discord, int value, boolean best, boolean worst) {
+        String mark = best ? "**" : worst ? "*" : "";
+        discord.append(mark).append(value).append(mark);
+    }
+
+    /**
+     * Append the total of a roll, colored by how it compares to the range of
+     * possible totals.
+     *
+     * @param discord The Discord buffer, or null to skip the Discord form
+     */
+    static void appendResultTotal(Config config, StringBuilder out, StringBuilder discord, DiceRoll roll) {
+        int median = 0;
+        int max = 0;
+        for (int i = 0; i < roll.getCount(); ++i) {
+            median += (int) Math.floor(roll.getSides(i) / 3.);
+            max += roll.getSides(i);
+        }
+        int total = roll.getTotal();
+
+        if (total <= roll.getCount()) {
+            out.append(config.natColors_critfail);
+        } else if (total >= max) {
+            out.append(config.natColors_critcrit);
+        } else if (total < median) {
+            out.append(config.natColors_fail);
+        } else if (total > max - median) {
+            out.append(config.natColors_crit);
+        } else {
+            out.append(config.natColors_normal);
+        }
+        out.append(total);
+        if (discord != null) {
+            appendEmphasized(discord, total, total >= max, total <= roll.getCount());
+        }
+    }
+
+    /**
+     * Append the colored list of dice, each judged against its own number of
+     * sides. The modifier is shown on the first die.
+     *
+     * @param discord The Discord buffer, or null to skip the Discord form
+     */
+    static void appendResults(Config config, StringBuilder out, StringBuilder discord, DiceRoll roll) {
+        for (int i = roll.getCount() - 1; i >= 0; --i) {
+            int max = roll.getSides(i);
+            int median = (int) Math.floor(max / 3.);
+            int value = i == 0 ? roll.getRoll(i) + roll.getModifier() : roll.getRoll(i);
+            if (value == 1) {
+                out.append(config.natColors_critfail);
+            } else if (value == max) {
+                out.append(config.natColors_critcrit);
+            } else if (value < median) {
+                out.append(config.natColors_fail);
+            } else if (value > max - median) {
+                out.append(config.natColors_crit);
+            } else {
+                out.append(config.natColors_normal);
+            }
+            out.append(value);
+            if (discord != null) {
+                appendEmphasized(discord, value, value == max, value == 1);
+            }
+            if (i != 0) {
+                out.append(", ");
+                if (discord != null) {
+                    discord.append(", ");
+                }
+            }
+        }
+    }
+
+    /**
+     * @param sender The user that rolled
+     * @return The user's display name, stripped of anything but letters,
+     *         digits and underscores
+     */
+    static String formatName(CommandSender sender) {
+        if (sender instanceof Player) {
+            return ((Player) sender).getDisplayName().replaceAll("[^A-Za-z0-9_]", "");
+        }
+        return sender.getName();
+    }
+
+    /**
+     * Render a compiled template for a bulk roll, listing the face histogram
+     * as the result.
+     *
+     * @param config The configuration supplying the natColors
+     * @param template The template, or null if the message is disabled
+     * @param sender The user that rolled
+     * @param roll The results of the roll
+     * @return The rendered message, or null if the template is empty
+     */
+    public static String render(final Config config, MessageTemplate template,
+            final CommandSender sender, final BulkRoll roll) {
+        if (template == null) {
+            return null;
+        }
+        final int mod = roll.getModifier();
+        return template.render((placeholder, out, discord) -> {
+            switch (placeholder) {
+                case PLAYER:
+                    out.append(sender.getName());
+                    break;
+                case NICKNAME:
+                    out.append(formatName(sender));
+                    break;
+                case RESULT:
+                    appendHistogram(config, out, roll);
+                    break;
+                case COUNT:
+                    out.append(roll.getCount());
+                    break;
+                case SIDES:
+                    out.append(roll.getSides());
+                    break;
+                case MOD:
+                    appendModifier(out, mod);
+                    break;
+                case TOTAL:
+                    if (config.natColors_enabled) {
+                        out.append(config.natColors_normal);
+                    }
+                    out.append(roll.getTotal());
+                    break;
+            }
+        });
+    }
+
+    /**
+     * Append a histogram as "face x count" pairs, coloring each face like a
+     * single die when natColors are enabled.
+     */
+    static void appendHistogram(Config config, StringBuilder out, BulkRoll roll) {
+        int max = roll.getSides();
+        int median = (int) Math.floor(max / 3.);
+        for (int face = 1; face <= max; ++face) {
+            if (face > 1) {
+                out.append(", ");
+            }
+            if (config.natColors_enabled) {
+                if (face == 1) {
+                    out.append(config.natColors_critfail);
+                } else if (face == max) {
+                    out.append(config.natColors_critcrit);
+                } else if (face < median) {
+                    out.append(config.natColors_fail);
+                } else if (face > max - median) {
+                    out.append(config.natColors_crit);
+                } else {
+                    out.append(config.natColors_normal);
+                }
+            }
+            out.append(face).append('\u00d7').append(roll.getFaceCount(face));
+        }
+    }
+
+}
@@ -0,0 +1,263 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Answers "what did X roll lately?" from the roll journal. Every segment gets
+ * an index of record offsets by roller and hour, built by a single pass over
+ * the record headers and saved next to the segment once it is complete. A
+ * query only opens the segments that overlap the requested time span and
+ * reads the records the index points at, newest first.
+ *
+ * Queries do file I/O and must not run on the main thread.
+ */
+public class RollHistory {
+
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final int INDEX_MAGIC = 0x44524931;
+    private static final long HOUR = 3600000L;
+
+    private final File directory;
+    private final LruCache<File, SegmentIndex> indexes;
+
+    /**
+     * Offsets of one roller's records within a segment, in the order they
+     * were written, with the hour each was rolled in.
+     */
+    private static final class Entries {
+
+        int size;
+        int[] hours = new int[8];
+        int[] offsets = new int[8];
+
+        void add(int hour, int offset) {
+            if (size == offsets.length) {
+                hours = Arrays.copyOf(hours, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            hours[size] = hour;
+            offsets[size++] = offset;
+        }
+
+        /** @return Index of the first entry in or after the hour */
+        int firstAtOrAfter(int hour) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (hours[mid] < hour) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
+    /**
+     * The index of one segment, covering it up to the scanned position.
+     */
+    private static final class SegmentIndex {
+
+        final Map<UUID, Entries> rollers = new HashMap<>();
+        int scanned = 4;
+        boolean saved;
+
+        /**
+         * Index any records added to the segment since the last scan.
+         *
+         * @return Whether anything new was found
+         */
+        boolean extend(ByteBuffer segment) {
+            int start = scanned;
+            int position = scanned;
+            while (position + 4 <= segment.limit()) {
+                int length = segment.getInt(position);
+                if (length < 25 || position + 4 + length > segment.limit()) {
+                    break;
+                }
+                long time = segment.getLong(position + 4);
+                UUID id = new UUID(segment.getLong(position + 13), segment.getLong(position + 21));
+                Entries entries = rollers.get(id);
+                if (entries == null) {
+                    rollers.put(id, entries = new Entries());
+                }
+                entries.add((int) (time / HOUR), position);
+                position += 4 + length;
+            }
+            scanned = position;
+            return position != start;
+        }
+    }
+
+    /**
+     * @param directory The journal directory
+     * @param cacheSize Number of segment indexes kept in memory
+     */
+    public RollHistory(File directory, int cacheSize) {
+        this.directory = directory;
+        this.indexes = new LruCache<>(cacheSize);
+    }
+
+    /**
+     * Find the most recent rolls of a player or Discord user.
+     *
+     * @param id The roller's UUID, as recorded in the journal
+     * @param since Earliest time to include, in milliseconds since the epoch
+     * @param limit Maximum number of records to return
+     * @return The matching records, newest first
+     * @throws IOException If the journal cannot be read
+     */
+    public List<RollJournal.Record> query(UUID id, long since, int limit) throws IOException {
+        List<RollJournal.Record> results = new ArrayList<>();
+        File[] segments = RollJournal.listSegments(directory);
+        int sinceHour = (int) (since / HOUR);
+        for (int i = segments.length - 1; i >= 0 && results.size() < limit; --i) {
+            /* A segment ends where the next one starts */
+            if (i + 1 < segments.length && RollJournal.startOf(segments[i + 1]) < since) {
+                break;
+            }
+            File file = segments[i];
+            ByteBuffer segment = map(file);
+            if (segment.limit() < 4 || segment.getInt(0) != RollJournal.MAGIC) {
+                continue;
+            }
+            SegmentIndex index = index(file, segment, i + 1 == segments.length);
+            synchronized (index) {
+                Entries entries = index.rollers.get(id);
+                if (entries == null) {
+                    continue;
+                }
+                int first = entries.firstAtOrAfter(sinceHour);
+                for (int j = entries.size - 1; j >= first && results.size() < limit; --j) {
+                    RollJournal.Record record;
+                    try {
+                        segment.position(entries.offsets[j] + 4);
+                        record = RollJournal.decode(segment);
+                    } catch (BufferUnderflowException | IllegalStateException ex) {
+                        continue;
+                    }
+                    if (record.getTime() >= since) {
+                        results.add(record);
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Get the index of a segment, loading it from disk or building it as
+     * needed, and bring it up to date with the segment's contents.
+     */
+    private SegmentIndex index(File file, ByteBuffer segment, boolean active) throws IOException {
+        SegmentIndex index = indexes.get(file);
+        if (index == null) {
+            index = load(indexFile(file));
+            if (index == null) {
+                index = new SegmentIndex();
+            }
+            indexes.put(file, index);
+        }
+        synchronized (index) {
+            if (index.extend(segment)) {
+                index.saved = false;
+            }
+            if (!active && !index.saved) {
+                save(index, indexFile(file));
+            }
+        }
+        return index;
+    }
+
+    private static File indexFile(File segment) {
+        String name = segment.getName();
+        return new File(segment.getParentFile(),
+                name.substring(0, name.length() - RollJournal.SUFFIX.length()) + INDEX_SUFFIX);
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Read a saved index, or return null if it is missing or unreadable.
+     */
+    private static SegmentIndex load(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != INDEX_MAGIC) {
+                return null;
+            }
+            SegmentIndex index = new SegmentIndex();
+            index.scanned = in.readInt();
+            for (int rollers = in.readInt(); rollers > 0; --rollers) {
+                UUID id = new UUID(in.readLong(), in.readLong());
+                Entries entries = new Entries();
+                for (int n = in.readInt(); n > 0; --n) {
+                    entries.add(in.readInt(), in.readInt());
+                }
+                index.rollers.put(id, entries);
+            }
+            index.saved = true;
+            return index;
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    private static void save(SegmentIndex index, File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(index.scanned);
+            out.writeInt(index.rollers.size());
+            for (Map.Entry<UUID, Entries> roller : index.rollers.entrySet()) {
+                out.writeLong(roller.getKey().getMostSignificantBits());
+                out.writeLong(roller.getKey().getLeastSignificantBits());
+                Entries entries = roller.getValue();
+                out.writeInt(entries.size);
+                for (int i = 0; i < entries.size; ++i) {
+                    out.writeInt(entries.hours[i]);
+                    out.writeInt(entries.offsets[i]);
+                }
+            }
+        }
+        index.saved = true;
+    }
+
+}
@@ -0,0 +1,534 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An append-only binary journal of every roll, written by a background thread
+ * into memory-mapped segment files. Rolls are handed over through a bounded
+ * queue, so appending never blocks the caller; if the writer falls too far
+ * behind, records are dropped and counted instead.
+ *
+ * Segments are named "rolls-&lt;millis&gt;.dat" after the time they were
+ * started, and begin with the magic number 0x44524A31 ("DRJ1"). Each record
+ * is, in big-endian order:
+ * <ul>
+ * <li>int - length of the rest of the record; 0 marks the end of a segment</li>
+ * <li>long - time of the roll, in milliseconds since the epoch</li>
+ * <li>byte - source (0 console, 1 player, 2 Discord), plus 0x80 when the
+ * values are a bulk roll's face histogram</li>
+ * <li>long, long - the player's UUID, or 0 and the Discord user ID</li>
+ * <li>short, bytes - the expression, UTF-8 encoded</li>
+ * <li>int - the modifier</li>
+ * <li>long - the total</li>
+ * <li>varint, varints - the number of values, then each die (or face count)</li>
+ * </ul>
+ */
+public class RollJournal {
+
+    public static final byte SOURCE_CONSOLE = 0;
+    public static final byte SOURCE_PLAYER = 1;
+    public static final byte SOURCE_DISCORD = 2;
+    /** Set on the source byte when the values are a face histogram. */
+    public static final byte FLAG_HISTOGRAM = (byte) 0x80;
+
+    static final int MAGIC = 0x44524A31;
+    static final String PREFIX = "rolls-";
+    static final String SUFFIX = ".dat";
+
+    private static final int QUEUE_CAPACITY = 65536;
+    private static final int BATCH_SIZE = 1024;
+    private static final int MIN_SEGMENT_SIZE = 64 * 1024;
+
+    private final File directory;
+    private final int segmentSize;
+    private final Logger logger;
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread writer;
+    private volatile boolean closed;
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /* Writer thread state */
+    private MappedByteBuffer segment;
+    private ByteBuffer scratch = ByteBuffer.allocate(4096);
+
+    /**
+     * A roll waiting to be written.
+     */
+    private static final class Entry {
+
+        final long time;
+        final byte source;
+        final long idHigh, idLow;
+        final String expression;
+        final int modifier;
+        final long total;
+        /** The roll, or null for a bulk roll. */
+        final DiceRoll roll;
+        /** The face histogram of a bulk roll, or null. */
+        final int[] histogram;
+
+        Entry(byte source, long idHigh, long idLow, String expression, int modifier,
+                long total, DiceRoll roll, int[] histogram) {
+            this.time = System.currentTimeMillis();
+            this.source = source;
+            this.idHigh = idHigh;
+            this.idLow = idLow;
+            this.expression = expression;
+            this.modifier = modifier;
+            this.total = total;
+            this.roll = roll;
+            this.histogram = histogram;
+        }
+    }
+
+    /**
+     * A roll read back from the journal.
+     */
+    public static final class Record {
+
+        private final long time;
+        private final byte source;
+        private final long idHigh, idLow;
+        private final String expression;
+        private final int modifier;
+        private final long total;
+        private final int[] values;
+
+        Record(long time, byte source, long idHigh, long idLow, String expression,
+                int modifier, long total, int[] values) {
+            this.time = time;
+            this.source = source;
+            this.idHigh = idHigh;
+            this.idLow = idLow;
+            this.expression = expression;
+            this.modifier = modifier;
+            this.total = total;
+            this.values = values;
+        }
+
+        /**
+         * @return Time of the roll, in milliseconds since the epoch
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return One of the SOURCE_ constants
+         */
+        public byte getSource() {
+            return (byte) (source & ~FLAG_HISTOGRAM);
+        }
+
+        /**
+         * @return Whether the values are a face histogram of a bulk roll
+         */
+        public boolean isHistogram() {
+            return (source & FLAG_HISTOGRAM) != 0;
+        }
+
+        /**
+         * @return The roller's UUID; for Discord rolls the low bits hold the
+         *         user ID
+         */
+        public UUID getId() {
+            return new UUID(idHigh, idLow);
+        }
+
+        /**
+         * @return The expression as it was typed
+         */
+        public String getExpression() {
+            return expression;
+        }
+
+        /**
+         * @return The constant modifier
+         */
+        public int getModifier() {
+            return modifier;
+        }
+
+        /**
+         * @return The total of the roll
+         */
+        public long getTotal() {
+            return total;
+        }
+
+        /**
+         * @return A copy of the kept dice, or of the face histogram
+         */
+        public int[] getValues() {
+            return values.clone();
+        }
+    }
+
+    /**
+     * Open the journal and start its writer thread.
+     *
+     * @param directory Directory holding the segment files
+     * @param segmentSize Size of each segment file in bytes
+     * @param logger Where to report write failures
+     */
+    public RollJournal(File directory, int segmentSize, Logger logger) {
+        this.directory = directory;
+        this.segmentSize = Math.max(MIN_SEGMENT_SIZE, segmentSize);
+        this.logger = logger;
+        this.writer = new Thread(this::run, "Dice-Journal");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queue a roll for writing. Never blocks.
+     *
+     * @param source One of the SOURCE_ constants
+     * @param id The player's UUID, or null for the console
+     * @param roll The roll
+     */
+    public void append(byte source, UUID id, DiceRoll roll) {
+        offer(new Entry(source, id == null ? 0 : id.getMostSignificantBits(),
+                id == null ? 0 : id.getLeastSignificantBits(), roll.getExpression().getSource(),
+                roll.getModifier(), roll.getTotal(), roll, null));
+    }
+
+    /**
+     * Queue a Discord roll for writing. Never blocks.
+     *
+     * @param discordId The Discord user ID
+     * @param roll The roll
+     */
+    public void append(long discordId, DiceRoll roll) {
+        offer(new Entry(SOURCE_DISCORD, 0, discordId, roll.getExpression().getSource(),
+                roll.getModifier(), roll.getTotal(), roll, null));
+    }
+
+    /**
+     * Queue a bulk roll for writing, keeping its face histogram. Never
+     * blocks.
+     *
+     * @param source One of the SOURCE_ constants
+     * @param id The player's UUID, or null for the console
+     * @param expression The expression as typed
+     * @param roll The roll
+     */
+    public void append(byte source, UUID id, String expression, BulkRoll roll) {
+        offer(new Entry((byte) (source | FLAG_HISTOGRAM),
+                id == null ? 0 : id.getMostSignificantBits(),
+                id == null ? 0 : id.getLeastSignificantBits(), expression,
+                roll.getModifier(), roll.getTotal(), null, roll.getHistogram()));
+    }
+
+    private void offer(Entry entry) {
+        if (closed || !queue.offer(entry)) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Write out everything still queued and stop the writer thread.
+     */
+    public void close() {
+        closed = true;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return Number of records written
+     */
+    public long getWrittenCount() {
+        return written.sum();
+    }
+
+    /**
+     * @return Number of records dropped because the queue was full
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return Number of records waiting to be written
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return The directory holding the segment files
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    private void run() {
+        List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Entry first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                for (Entry entry : batch) {
+                    write(entry);
+                }
+            } catch (InterruptedException ex) {
+                break;
+            } catch (IOException | RuntimeException ex) {
+                logger.log(Level.WARNING, "Could not write to the roll journal", ex);
+                dropped.add(batch.size());
+                segment = null;
+            }
+            batch.clear();
+        }
+        if (segment != null) {
+            segment.force();
+            segment = null;
+        }
+    }
+
+    /**
+     * Encode a record and copy it into the current segment, rotating to a new
+     * segment when it does not fit. The length is written last, so a reader
+     * never sees a partial record.
+     */
+    private void write(Entry entry) throws IOException {
+        ByteBuffer out = encode(entry);
+        int length = out.remaining();
+        if (length + 8 > segmentSize) {
+            dropped.increment();
+            return;
+        }
+        if (segment == null) {
+            segment = openLatest();
+        }
+        /* Leave room for the terminating zero length */
+        if (segment.remaining() < 4 + length + 4) {
+            segment.force();
+            segment = create(entry.time);
+        }
+        int start = segment.position();
+        segment.position(start + 4);
+        segment.put(out);
+        segment.putInt(start, length);
+        written.increment();
+    }
+
+    private ByteBuffer encode(Entry entry) {
+        byte[] expression = entry.expression.getBytes(StandardCharsets.UTF_8);
+        if (expression.length > Short.MAX_VALUE) {
+            expression = Arrays.copyOf(expression, Short.MAX_VALUE);
+        }
+        int count = entry.roll != null ? entry.roll.getCount() : entry.histogram.length;
+        int needed = 8 + 1 + 16 + 2 + expression.length + 4 + 8 + 5 * (count + 1);
+        if (scratch.capacity() < needed) {
+            scratch = ByteBuffer.allocate(Math.max(needed, scratch.capacity() * 2));
+        }
+        ByteBuffer out = scratch;
+        out.clear();
+        out.putLong(entry.time);
+        out.put(entry.source);
+        out.putLong(entry.idHigh);
+        out.putLong(entry.idLow);
+        out.putShort((short) expression.length);
+        out.put(expression);
+        out.putInt(entry.modifier);
+        out.putLong(entry.total);
+        putVarint(out, count);
+        for (int i = 0; i < count; ++i) {
+            putVarint(out, entry.roll != null ? entry.roll.getRoll(i) : entry.histogram[i]);
+        }
+        out.flip();
+        return out;
+    }
+
+    private static void putVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static int getVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Malformed varint");
+    }
+
+    /**
+     * Continue the newest segment if it is intact, otherwise start a new one.
+     */
+    private MappedByteBuffer openLatest() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        File[] segments = listSegments(directory);
+        if (segments.length > 0) {
+            File latest = segments[segments.length - 1];
+            MappedByteBuffer buffer = map(latest, Math.max(latest.length(), segmentSize));
+            if (buffer.getInt(0) == MAGIC) {
+                buffer.position(endOf(buffer));
+                return buffer;
+            }
+        }
+        return create(System.currentTimeMillis());
+    }
+
+    private MappedByteBuffer create(long time) throws IOException {
+        File file = new File(directory, PREFIX + time + SUFFIX);
+        while (file.exists()) {
+            file = new File(directory, PREFIX + (++time) + SUFFIX);
+        }
+        MappedByteBuffer buffer = map(file, segmentSize);
+        buffer.putInt(MAGIC);
+        return buffer;
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * Find the offset of the terminating zero length in a segment.
+     */
+    private static int endOf(ByteBuffer buffer) {
+        int position = 4;
+        while (position + 4 <= buffer.limit()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + 4 + length > buffer.limit()) {
+                break;
+            }
+            position += 4 + length;
+        }
+        return position;
+    }
+
+    /**
+     * @param directory The journal directory
+     * @return Its segment files, oldest first
+     */
+    static File[] listSegments(File directory) {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(startOf(a), startOf(b)));
+        return files;
+    }
+
+    /**
+     * @param segment A segment file
+     * @return The time it was started, taken from its name
+     */
+    static long startOf(File segment) {
+        String name = segment.getName();
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * Read every record of a segment, in the order they were written.
+     *
+     * @param segment The segment file
+     * @param consumer Receives each record
+     * @throws IOException If the file cannot be read
+     */
+    public static void read(File segment, Consumer<Record> consumer) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.limit() < 4 || buffer.getInt(0) != MAGIC) {
+            throw new IOException(segment + " is not a roll journal segment");
+        }
+        buffer.position(4);
+        while (buffer.remaining() >= 4) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                return;
+            }
+            try {
+                consumer.accept(decode(buffer));
+            } catch (BufferUnderflowException | IllegalStateException ex) {
+                return;
+            }
+            buffer.position(start + 4 + length);
+        }
+    }
+
+    static Record decode(ByteBuffer in) {
+        long time = in.getLong();
+        byte source = in.get();
+        long idHigh = in.getLong();
+        long idLow = in.getLong();
+        byte[] expression = new byte[in.getShort()];
+        in.get(expression);
+        int modifier = in.getInt();
+        long total = in.getLong();
+        int count = getVarint(in);
+        if (count < 0 || count > in.remaining()) {
+            throw new IllegalStateException("Malformed record");
+        }
+        int[] values = new int[count];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = getVarint(in);
+        }
+        return new Record(time, source, idHigh, idLow,
+                new String(expression, StandardCharsets.UTF_8), modifier, total, values);
+    }
+
+}
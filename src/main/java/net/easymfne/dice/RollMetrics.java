@@ -0,0 +1,374 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Low-overhead counters and histograms for the roll path. Every update is a
+ * LongAdder increment or a single atomic add into a log-linear histogram, so
+ * recording is safe and cheap from any thread. The numbers are shown by
+ * "/roll stats" and can be written to a Prometheus text file.
+ */
+public class RollMetrics {
+
+    /**
+     * The timed stages of a roll. Each stage starts where the previous one
+     * ended: PARSE compiles the expression, ROLL rolls it and writes it to the
+     * journal, FORMAT renders the message, EVENT fires the roll events and
+     * BROADCAST delivers the message in-game. Discord replies are sent later
+     * by the DiscordOutbox, which keeps its own flush latency.
+     */
+    public enum Stage {
+        PARSE, ROLL, FORMAT, EVENT, BROADCAST;
+
+        private final String label = name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Where a roll came from.
+     */
+    public enum Source {
+        GAME, DISCORD;
+
+        private final String label = name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * A concurrent log-linear histogram in the style of HdrHistogram: values
+     * are bucketed by power of two, and each power of two is split into 16
+     * linear sub-buckets, giving at most about 6% relative error over the
+     * whole range of a long.
+     */
+    public static final class Histogram {
+
+        private static final int SUB_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * @param value A non-negative value to record
+         */
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            counts.incrementAndGet(index(value));
+            count.increment();
+            sum.add(value);
+            long m;
+            while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+                // retry
+            }
+        }
+
+        private static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+        }
+
+        /** @return The largest value that falls into a bucket */
+        private static long upperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int exponent = index / SUB_BUCKETS;
+            long base = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - 1);
+            return base + (1L << (exponent - 1)) - 1;
+        }
+
+        /**
+         * @return Number of values recorded
+         */
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * @return Sum of all values recorded
+         */
+        public long getSum() {
+            return sum.sum();
+        }
+
+        /**
+         * @return Largest value recorded
+         */
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * @return Mean of all values recorded
+         */
+        public double getMean() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) sum.sum() / n;
+        }
+
+        /**
+         * @param quantile A quantile between 0 and 1
+         * @return An upper bound of the value at that quantile
+         */
+        public long getQuantile(double quantile) {
+            long total = 0;
+            for (int i = 0; i < counts.length(); ++i) {
+                total += counts.get(i);
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); ++i) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+    }
+
+    private final LongAdder[] rolls = new LongAdder[Source.values().length];
+    private final LongAdder[] rejections = new LongAdder[Source.values().length];
+    private final LongAdder errors = new LongAdder();
+    private final Histogram[] stages = new Histogram[Stage.values().length];
+    private final Histogram recipients = new Histogram();
+    private final long started = System.currentTimeMillis();
+
+    public RollMetrics() {
+        for (int i = 0; i < rolls.length; ++i) {
+            rolls[i] = new LongAdder();
+            rejections[i] = new LongAdder();
+        }
+        for (int i = 0; i < stages.length; ++i) {
+            stages[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Count a completed roll.
+     *
+     * @param source Where the roll came from
+     */
+    public void countRoll(Source source) {
+        rolls[source.ordinal()].increment();
+    }
+
+    /**
+     * Count a roll refused by the rate limiter.
+     *
+     * @param source Where the roll came from
+     */
+    public void countRejection(Source source) {
+        rejections[source.ordinal()].increment();
+    }
+
+    /**
+     * Count an expression that could not be parsed or exceeded the limits.
+     */
+    public void countError() {
+        errors.increment();
+    }
+
+    /**
+     * Record how long a stage took, measured from a System.nanoTime() value.
+     *
+     * @param stage The stage
+     * @param startNanos The System.nanoTime() value when the stage began
+     * @return The current System.nanoTime(), to start the next stage with
+     */
+    public long time(Stage stage, long startNanos) {
+        long now = System.nanoTime();
+        stages[stage.ordinal()].record(now - startNanos);
+        return now;
+    }
+
+    /**
+     * @param count The number of players a broadcast was delivered to
+     */
+    public void recordRecipients(int count) {
+        recipients.record(count);
+    }
+
+    /**
+     * @param stage A stage
+     * @return Its latency histogram, in nanoseconds
+     */
+    public Histogram getStage(Stage stage) {
+        return stages[stage.ordinal()];
+    }
+
+    /**
+     * @return The histogram of recipients per broadcast
+     */
+    public Histogram getRecipients() {
+        return recipients;
+    }
+
+    /**
+     * @param source A source
+     * @return The number of rolls from it
+     */
+    public long getRolls(Source source) {
+        return rolls[source.ordinal()].sum();
+    }
+
+    /**
+     * @param source A source
+     * @return The number of rolls from it refused by the rate limiter
+     */
+    public long getRejections(Source source) {
+        return rejections[source.ordinal()].sum();
+    }
+
+    /**
+     * @return The number of invalid or oversized expressions
+     */
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    /**
+     * Summarize the metrics for display in chat.
+     *
+     * @param outbox The Discord outbox, or null if Discord is not in use
+     * @param journal The roll journal, or null if it is disabled
+     * @return Lines of text, without colors
+     */
+    public List<String> summarize(DiscordOutbox outbox, RollJournal journal) {
+        List<String> lines = new ArrayList<>();
+        long minutes = Math.max(1, (System.currentTimeMillis() - started) / 60000);
+        long total = getRolls(Source.GAME) + getRolls(Source.DISCORD);
+        lines.add(String.format(Locale.ROOT,
+                "Rolls: %d in-game, %d Discord (%.1f/min); %d rate limited, %d invalid",
+                getRolls(Source.GAME), getRolls(Source.DISCORD), (double) total / minutes,
+                getRejections(Source.GAME) + getRejections(Source.DISCORD), getErrors()));
+        for (Stage stage : Stage.values()) {
+            Histogram h = getStage(stage);
+            lines.add(String.format(Locale.ROOT, "%s: p50 %.1fus, p99 %.1fus, max %.1fus (n=%d)",
+                    stage.label, h.getQuantile(0.5) / 1000.0, h.getQuantile(0.99) / 1000.0,
+                    h.getMax() / 1000.0, h.getCount()));
+        }
+        lines.add(String.format(Locale.ROOT, "Recipients per broadcast: mean %.1f, p99 %d, max %d",
+                recipients.getMean(), recipients.getQuantile(0.99), recipients.getMax()));
+        if (outbox != null) {
+            lines.add(String.format(Locale.ROOT,
+                    "Discord: %d queued, %d sent, flush latency mean %dus max %dus, %d reactions suppressed",
+                    outbox.getQueueDepth(), outbox.getFlushCount(), outbox.getMeanFlushLatencyMicros(),
+                    outbox.getMaxFlushLatencyMicros(), outbox.getSuppressedReactions()));
+        }
+        if (journal != null) {
+            lines.add(String.format(Locale.ROOT, "Journal: %d written, %d queued, %d dropped",
+                    journal.getWrittenCount(), journal.getQueueDepth(), journal.getDroppedCount()));
+        }
+        return lines;
+    }
+
+    /**
+     * Write the metrics in the Prometheus text exposition format, replacing
+     * the file atomically so that a scraper never reads a partial file.
+     *
+     * @param file The file to write, e.g. in node_exporter's textfile directory
+     * @param outbox The Discord outbox, or null if Discord is not in use
+     * @param journal The roll journal, or null if it is disabled
+     * @throws IOException If the file cannot be written
+     */
+    public void writePrometheus(File file, DiscordOutbox outbox, RollJournal journal) throws IOException {
+        StringBuilder out = new StringBuilder(4096);
+        out.append("# HELP dice_rolls_total Rolls completed.\n# TYPE dice_rolls_total counter\n");
+        for (Source source : Source.values()) {
+            sample(out, "dice_rolls_total", "source", source.label, getRolls(source));
+        }
+        out.append("# HELP dice_rate_limited_total Rolls refused by the rate limiter.\n")
+                .append("# TYPE dice_rate_limited_total counter\n");
+        for (Source source : Source.values()) {
+            sample(out, "dice_rate_limited_total", "source", source.label, getRejections(source));
+        }
+        out.append("# HELP dice_errors_total Invalid or oversized expressions.\n")
+                .append("# TYPE dice_errors_total counter\n");
+        sample(out, "dice_errors_total", null, null, getErrors());
+
+        out.append("# HELP dice_stage_seconds Time spent in each stage of a roll.\n")
+                .append("# TYPE dice_stage_seconds summary\n");
+        for (Stage stage : Stage.values()) {
+            Histogram h = getStage(stage);
+            for (double q : new double[] {0.5, 0.9, 0.99}) {
+                out.append("dice_stage_seconds{stage=\"").append(stage.label)
+                        .append("\",quantile=\"").append(q).append("\"} ")
+                        .append(h.getQuantile(q) / 1e9).append('\n');
+            }
+            sample(out, "dice_stage_seconds_sum", "stage", stage.label, h.getSum() / 1e9);
+            sample(out, "dice_stage_seconds_count", "stage", stage.label, h.getCount());
+        }
+
+        out.append("# HELP dice_broadcast_recipients Players reached per broadcast.\n")
+                .append("# TYPE dice_broadcast_recipients summary\n");
+        for (double q : new double[] {0.5, 0.99}) {
+            out.append("dice_broadcast_recipients{quantile=\"").append(q).append("\"} ")
+                    .append(recipients.getQuantile(q)).append('\n');
+        }
+        sample(out, "dice_broadcast_recipients_sum", null, null, recipients.getSum());
+        sample(out, "dice_broadcast_recipients_count", null, null, recipients.getCount());
+
+        if (outbox != null) {
+            out.append("# TYPE dice_discord_queue_depth gauge\n");
+            sample(out, "dice_discord_queue_depth", null, null, outbox.getQueueDepth());
+            out.append("# TYPE dice_discord_messages_total counter\n");
+            sample(out, "dice_discord_messages_total", null, null, outbox.getFlushCount());
+        }
+        if (journal != null) {
+            out.append("# TYPE dice_journal_queue_depth gauge\n");
+            sample(out, "dice_journal_queue_depth", null, null, journal.getQueueDepth());
+            out.append("# TYPE dice_journal_dropped_total counter\n");
+            sample(out, "dice_journal_dropped_total", null, null, journal.getDroppedCount());
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+            writer.append(out);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void sample(StringBuilder out, String name, String label, String value, Object sample) {
+        out.append(name);
+        if (label != null) {
+            out.append('{').append(label).append("=\"").append(value).append("\"}");
+        }
+        out.append(' ').append(sample).append('\n');
+    }
+
+}
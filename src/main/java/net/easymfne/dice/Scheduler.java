@@ -0,0 +1,149 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import io.papermc.paper.threadedregions.scheduler.ScheduledTask;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Entity;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Runs the plugin's tasks on the right thread for the server it is on. On
+ * Paper there is one main thread and the BukkitScheduler is used. On Folia,
+ * where every region of the world ticks on its own thread, work that
+ * concerns one player runs on that player's region, work that concerns the
+ * whole server runs on the global region, and background work runs on the
+ * asynchronous scheduler.
+ *
+ * Tasks for the main thread, the global region or a player's region run
+ * immediately when the caller is already on that thread.
+ */
+public class Scheduler {
+
+    private static final long TICK_MILLIS = 50L;
+
+    private static final boolean FOLIA = detectFolia();
+
+    /**
+     * A scheduled repeating task.
+     */
+    public interface Task {
+
+        /**
+         * Stop the task from running again.
+         */
+        void cancel();
+    }
+
+    private final Plugin plugin;
+
+    /**
+     * @param plugin The plugin that owns the tasks
+     */
+    public Scheduler(Plugin plugin) {
+        this.plugin = plugin;
+    }
+
+    private static boolean detectFolia() {
+        try {
+            Class.forName("io.papermc.paper.threadedregions.RegionizedServer");
+            return true;
+        } catch (ClassNotFoundException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * @return Whether the server is Folia, ticking regions on separate threads
+     */
+    public static boolean isFolia() {
+        return FOLIA;
+    }
+
+    /**
+     * Run a task that concerns the whole server, on the main thread or
+     * Folia's global region.
+     *
+     * @param task The task
+     */
+    public void runGlobal(Runnable task) {
+        if (FOLIA) {
+            if (plugin.getServer().isGlobalTickThread()) {
+                task.run();
+            } else {
+                plugin.getServer().getGlobalRegionScheduler().execute(plugin, task);
+            }
+        } else if (plugin.getServer().isPrimaryThread()) {
+            task.run();
+        } else {
+            plugin.getServer().getScheduler().runTask(plugin, task);
+        }
+    }
+
+    /**
+     * Run a task that concerns one user: on Folia, on the region that owns a
+     * player, dropping the task if the player leaves first; for the console,
+     * or on Paper, as {@link #runGlobal(Runnable)}.
+     *
+     * @param sender The user
+     * @param task The task
+     */
+    public void runFor(CommandSender sender, Runnable task) {
+        if (!FOLIA || !(sender instanceof Entity)) {
+            runGlobal(task);
+        } else if (plugin.getServer().isOwnedByCurrentRegion((Entity) sender)) {
+            task.run();
+        } else {
+            ((Entity) sender).getScheduler().execute(plugin, task, null, 1L);
+        }
+    }
+
+    /**
+     * Run a task on a background thread.
+     *
+     * @param task The task
+     */
+    public void runAsync(final Runnable task) {
+        if (FOLIA) {
+            plugin.getServer().getAsyncScheduler().runNow(plugin, scheduled -> task.run());
+        } else {
+            plugin.getServer().getScheduler().runTaskAsynchronously(plugin, task);
+        }
+    }
+
+    /**
+     * Run a task repeatedly on a background thread.
+     *
+     * @param task The task
+     * @param delay Ticks before the first run
+     * @param period Ticks between runs
+     * @return The scheduled task
+     */
+    public Task runAsyncTimer(final Runnable task, long delay, long period) {
+        if (FOLIA) {
+            final ScheduledTask scheduled = plugin.getServer().getAsyncScheduler().runAtFixedRate(plugin,
+                    t -> task.run(), Math.max(1, delay) * TICK_MILLIS, Math.max(1, period) * TICK_MILLIS,
+                    TimeUnit.MILLISECONDS);
+            return () -> scheduled.cancel();
+        }
+        final BukkitTask scheduled = plugin.getServer().getScheduler()
+                .runTaskTimerAsynchronously(plugin, task, delay, period);
+        return scheduled::cancel;
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BulkRollTest {
+
+    private static final int SAMPLES = 20000;
+
+    /**
+     * Draw many samples and check that their mean is within five standard
+     * errors of n * p, and their variance within 5% of n * p * (1 - p).
+     */
+    private static void checkMoments(int n, double p) {
+        Random random = new Random(42);
+        double sum = 0, sumSquares = 0;
+        for (int i = 0; i < SAMPLES; ++i) {
+            int k = BulkRoll.binomial(random, n, p);
+            assertTrue("B(" + n + ", " + p + ") drew " + k, k >= 0 && k <= n);
+            sum += k;
+            sumSquares += (double) k * k;
+        }
+        double mean = sum / SAMPLES;
+        double variance = (sumSquares - sum * mean) / (SAMPLES - 1);
+        double expectedVariance = n * p * (1 - p);
+        String name = "B(" + n + ", " + p + ")";
+        assertEquals(name + " mean", n * p, mean, 5 * Math.sqrt(expectedVariance / SAMPLES));
+        assertEquals(name + " variance", expectedVariance, variance, 0.05 * expectedVariance);
+    }
+
+    @Test
+    public void inversion() {
+        checkMoments(50, 0.1);
+        checkMoments(8, 0.5);
+    }
+
+    @Test
+    public void btrs() {
+        checkMoments(1000, 1.0 / 6);
+        checkMoments(1000000, 0.01);
+        checkMoments(200, 0.5);
+    }
+
+    @Test
+    public void symmetry() {
+        checkMoments(100, 0.9);
+        checkMoments(30, 0.95);
+    }
+
+    @Test
+    public void edges() {
+        Random random = new Random(1);
+        assertEquals(0, BulkRoll.binomial(random, 0, 0.5));
+        assertEquals(0, BulkRoll.binomial(random, 10, 0));
+        assertEquals(10, BulkRoll.binomial(random, 10, 1));
+    }
+
+    @Test
+    public void histogramMatchesTotal() {
+        Random random = new Random(7);
+        BulkRoll roll = BulkRoll.roll(random, 1000000, 6, 3);
+        long count = 0, total = 3;
+        for (int face = 1; face <= 6; ++face) {
+            int n = roll.getFaceCount(face);
+            assertEquals(1000000 / 6.0, n, 5 * Math.sqrt(1000000 * (1.0 / 6) * (5.0 / 6)));
+            count += n;
+            total += (long) face * n;
+        }
+        assertEquals(1000000, count);
+        assertEquals(total, roll.getTotal());
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DiceParserTest {
+
+    private final DiceParser parser = new DiceParser(2, 6, 16);
+
+    private static void assertTerm(DiceExpression.Term term, boolean negative, int count, int sides,
+            int keep, boolean keepHighest, boolean explode, int reroll) {
+        assertEquals("negative", negative, term.negative);
+        assertEquals("count", count, term.count);
+        assertEquals("sides", sides, term.sides);
+        assertEquals("keep", keep, term.keep);
+        assertEquals("keepHighest", keepHighest, term.keepHighest);
+        assertEquals("explode", explode, term.explode);
+        assertEquals("reroll", reroll, term.reroll);
+    }
+
+    private DiceExpression.Term only(String input) {
+        DiceExpression.Term[] terms = parser.parse(input).getTerms();
+        assertEquals(1, terms.length);
+        return terms[0];
+    }
+
+    @Test
+    public void plainPool() {
+        DiceExpression expression = parser.parse("3d20");
+        assertTerm(only("3d20"), false, 3, 20, 3, true, false, 0);
+        assertEquals(0, expression.getModifier());
+        assertEquals(3, expression.getDiceCount());
+        assertEquals(20, expression.getMaxSides());
+        assertTrue(expression.isPlainPool());
+    }
+
+    @Test
+    public void defaults() {
+        assertTerm(only("d8"), false, 2, 8, 2, true, false, 0);
+        assertTerm(parser.getDefault().getTerms()[0], false, 2, 6, 2, true, false, 0);
+        assertEquals("2d6", parser.getDefault().getSource());
+    }
+
+    @Test
+    public void bareLeadingCount() {
+        DiceExpression expression = parser.parse("3+2");
+        assertTerm(expression.getTerms()[0], false, 3, 6, 3, true, false, 0);
+        assertEquals(2, expression.getModifier());
+        assertTerm(only("4"), false, 4, 6, 4, true, false, 0);
+    }
+
+    @Test
+    public void keepAndDrop() {
+        assertTerm(only("4d6kh3"), false, 4, 6, 3, true, false, 0);
+        assertTerm(only("4d6k3"), false, 4, 6, 3, true, false, 0);
+        assertTerm(only("4d6kl1"), false, 4, 6, 1, false, false, 0);
+        assertTerm(only("4d6dl1"), false, 4, 6, 3, true, false, 0);
+        assertTerm(only("4d6dh1"), false, 4, 6, 3, false, false, 0);
+        assertFalse(parser.parse("4d6kh3").isPlainPool());
+    }
+
+    @Test
+    public void explodeAndReroll() {
+        assertTerm(only("3d6!"), false, 3, 6, 3, true, true, 0);
+        assertTerm(only("2d10r2"), false, 2, 10, 2, true, false, 2);
+        assertTerm(only("2d10r"), false, 2, 10, 2, true, false, 1);
+        assertTerm(only("4d6r1!kh3"), false, 4, 6, 3, true, true, 1);
+    }
+
+    @Test
+    public void severalTerms() {
+        DiceExpression expression = parser.parse("1d20+5-1d4-2");
+        DiceExpression.Term[] terms = expression.getTerms();
+        assertEquals(2, terms.length);
+        assertTerm(terms[0], false, 1, 20, 1, true, false, 0);
+        assertTerm(terms[1], true, 1, 4, 1, true, false, 0);
+        assertEquals(3, expression.getModifier());
+        assertEquals(2, expression.getDiceCount());
+        assertFalse(expression.isPlainPool());
+    }
+
+    @Test
+    public void caseInsensitive() {
+        assertTerm(only("2D6KH1"), false, 2, 6, 1, true, false, 0);
+    }
+
+    @Test
+    public void sourceRoundTrip() {
+        for (String input : new String[] {"2d6", "4d6kh3", "1d20+5", "3d6!r1", "2D6-1d4"}) {
+            DiceExpression expression = parser.parse(input);
+            assertEquals(input, expression.getSource());
+            assertEquals(input, expression.toString());
+            assertSame(expression, parser.parse(input));
+        }
+    }
+
+    @Test
+    public void largestNumber() {
+        DiceExpression expression = parser.parse("1000000d1000000+1000000");
+        assertEquals(1000000, expression.getDiceCount());
+        assertEquals(1000000, expression.getMaxSides());
+        assertEquals(1000000, expression.getModifier());
+    }
+
+    @Test
+    public void rejected() {
+        String[] inputs = {
+            "", "abc", "d", "2d", "2d6+", "2d6 3", "2d6x", "-3", "+",
+            "4d6k0", "4d6k5", "4d6d1", "4d6dl4", "2d6r6",
+            "1000001d6", "1d1000001", "1d6+1000001",
+        };
+        for (String input : inputs) {
+            assertThrows(input, IllegalArgumentException.class, () -> parser.compile(input));
+        }
+    }
+
+    @Test
+    public void rollsKeptDice() {
+        Random random = new Random(1);
+        DiceExpression expression = parser.parse("4d6kh3+2");
+        for (int i = 0; i < 1000; ++i) {
+            DiceRoll roll = expression.roll(random);
+            assertEquals(3, roll.getCount());
+            int sum = 2;
+            for (int die : roll.getRolls()) {
+                assertTrue(die >= 1 && die <= 6);
+                sum += die;
+            }
+            assertEquals(sum, roll.getTotal());
+        }
+    }
+
+}
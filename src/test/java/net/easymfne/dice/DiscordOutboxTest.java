@@ -0,0 +1,163 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import github.scarsz.discordsrv.dependencies.jda.api.entities.Message;
+import github.scarsz.discordsrv.dependencies.jda.api.entities.TextChannel;
+import github.scarsz.discordsrv.dependencies.jda.api.requests.RestAction;
+import github.scarsz.discordsrv.dependencies.jda.api.requests.restaction.MessageAction;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DiscordOutboxTest {
+
+    /** Long enough that nothing is flushed before close(). */
+    private static final long WINDOW = 60000L;
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+                (self, method, args) -> {
+                    switch (method.getName()) {
+                        case "hashCode":
+                            return System.identityHashCode(self);
+                        case "equals":
+                            return self == args[0];
+                        case "toString":
+                            return type.getSimpleName();
+                        default:
+                            return handler.invoke(self, method, args);
+                    }
+                }));
+    }
+
+    /** A request that does nothing when queued. */
+    private static final RestAction<?> QUEUED = proxy(MessageAction.class, (self, method, args) -> null);
+
+    /**
+     * @param id The channel ID
+     * @param sent Collects the text of every message sent to the channel
+     */
+    private static TextChannel channel(long id, List<String> sent) {
+        return proxy(TextChannel.class, (self, method, args) -> {
+            switch (method.getName()) {
+                case "getIdLong":
+                    return id;
+                case "sendMessage":
+                    sent.add(args[0].toString());
+                    return QUEUED;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    /**
+     * @param id The message ID
+     * @param reactions Collects every reaction added to the message
+     */
+    private static Message message(long id, List<Object> reactions) {
+        return proxy(Message.class, (self, method, args) -> {
+            switch (method.getName()) {
+                case "getIdLong":
+                    return id;
+                case "addReaction":
+                    reactions.add(args[0]);
+                    return QUEUED;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    private static String repeat(char c, int length) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    @Test
+    public void batchesPerChannel() {
+        List<String> first = new ArrayList<>(), second = new ArrayList<>();
+        TextChannel a = channel(1L, first), b = channel(2L, second);
+        DiscordOutbox outbox = new DiscordOutbox(WINDOW);
+        outbox.send(a, "one");
+        outbox.send(b, "two");
+        outbox.send(a, "three");
+        assertEquals(3, outbox.getQueueDepth());
+        assertTrue(first.isEmpty());
+        outbox.close();
+        assertEquals(Collections.singletonList("one\nthree"), first);
+        assertEquals(Collections.singletonList("two"), second);
+        assertEquals(0, outbox.getQueueDepth());
+        assertEquals(2, outbox.getFlushCount());
+    }
+
+    @Test
+    public void sendsAtOnceWithoutWindow() {
+        List<String> sent = new ArrayList<>();
+        TextChannel channel = channel(1L, sent);
+        DiscordOutbox outbox = new DiscordOutbox(0);
+        outbox.send(channel, "one");
+        outbox.send(channel, "two");
+        assertEquals(Arrays.asList("one", "two"), sent);
+        outbox.close();
+        assertEquals(2, sent.size());
+    }
+
+    @Test
+    public void splitsAtMaximumLength() {
+        List<String> sent = new ArrayList<>();
+        TextChannel channel = channel(1L, sent);
+        DiscordOutbox outbox = new DiscordOutbox(WINDOW);
+        String line = repeat('x', 900);
+        outbox.send(channel, line);
+        outbox.send(channel, line);
+        /* A third line would take the message past the limit */
+        outbox.send(channel, line);
+        assertEquals(Collections.singletonList(line + "\n" + line), sent);
+        outbox.send(channel, repeat('y', DiscordOutbox.MAX_LENGTH + 10));
+        outbox.close();
+        assertEquals(3, sent.size());
+        assertEquals(line, sent.get(1));
+        assertEquals(repeat('y', DiscordOutbox.MAX_LENGTH), sent.get(2));
+        for (String text : sent) {
+            assertTrue(text.length() <= DiscordOutbox.MAX_LENGTH);
+        }
+    }
+
+    @Test
+    public void reactsOncePerMessage() {
+        List<Object> first = new ArrayList<>(), second = new ArrayList<>();
+        Message a = message(10L, first), b = message(11L, second);
+        DiscordOutbox outbox = new DiscordOutbox(WINDOW);
+        outbox.react(a, "❗", null);
+        outbox.react(a, "❗", null);
+        outbox.react(b, "⏳", null);
+        outbox.close();
+        assertEquals(Collections.<Object>singletonList("❗"), first);
+        assertEquals(Collections.<Object>singletonList("⏳"), second);
+        assertEquals(1, outbox.getSuppressedReactions());
+    }
+
+}
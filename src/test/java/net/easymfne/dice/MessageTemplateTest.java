@@ -0,0 +1,89 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.Test;
+
+public class MessageTemplateTest {
+
+    /** Renders each placeholder as its name in lower case, in both forms. */
+    private static final class Names implements MessageTemplate.Values {
+
+        final List<MessageTemplate.Placeholder> seen = new ArrayList<>();
+
+        @Override
+        public void append(MessageTemplate.Placeholder placeholder, StringBuilder out, StringBuilder discord) {
+            seen.add(placeholder);
+            String name = placeholder.name().toLowerCase(Locale.ROOT);
+            out.append(name);
+            if (discord != null) {
+                discord.append(name);
+            }
+        }
+    }
+
+    @Test
+    public void empty() {
+        assertNull(MessageTemplate.compile(null));
+        assertNull(MessageTemplate.compile(""));
+    }
+
+    @Test
+    public void placeholdersInOrder() {
+        MessageTemplate template = MessageTemplate.compile("{PLAYER} rolled {RESULT} ({COUNT}d{SIDES}{MOD})");
+        Names names = new Names();
+        assertEquals("player rolled result (countdsidesmod)", template.render(names));
+        assertEquals(5, names.seen.size());
+        assertEquals(MessageTemplate.Placeholder.PLAYER, names.seen.get(0));
+        assertEquals(MessageTemplate.Placeholder.MOD, names.seen.get(4));
+    }
+
+    @Test
+    public void colorsAndUnknownTags() {
+        MessageTemplate template = MessageTemplate.compile("&c[Dice] {CHANNEL}{NICKNAME} {TOTAL}{UNKNOWN}&");
+        assertEquals("§c[Dice] {CHANNEL}nickname total{UNKNOWN}&", template.render(new Names()));
+    }
+
+    @Test
+    public void renderIsRepeatable() {
+        MessageTemplate template = MessageTemplate.compile("{TOTAL}!");
+        Names names = new Names();
+        assertEquals("total!", template.render(names));
+        assertEquals("total!", template.render(names));
+    }
+
+    @Test
+    public void discordForm() {
+        MessageTemplate template = MessageTemplate.compile("&c[&fDice&c] {CHANNEL}{PLAYER} rolled *{TOTAL}*");
+        MessageTemplate.Rendered rendered = template.renderBoth(new Names());
+        assertEquals("§c[§fDice§c] {CHANNEL}player rolled *total*", rendered.getGame());
+        assertEquals("[Dice] player rolled \\*total\\*", rendered.getDiscord());
+    }
+
+    @Test
+    public void appendDiscordEscapes() {
+        StringBuilder out = new StringBuilder();
+        MessageTemplate.appendDiscord("§la_b|c>d`e~f\\g§", out);
+        assertEquals("a\\_b\\|c\\>d\\`e\\~f\\\\g", out.toString());
+    }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Checks the exact distributions against brute-force enumeration of every
+ * way the dice can land.
+ */
+public class OddsCalculatorTest {
+
+    private static final double EPSILON = 1e-12;
+
+    /** Explosions followed when enumerating an exploding die. */
+    private static final int DEPTH = 8;
+
+    private final DiceParser parser = new DiceParser(3, 6, 16);
+    private final OddsCalculator calculator = new OddsCalculator(16);
+
+    /**
+     * Every way one die of a term can land, as {value, weight} pairs: the
+     * first throw, the reroll of a low first throw, and explosions up to
+     * DEPTH.
+     */
+    private static List<double[]> outcomes(DiceExpression.Term term) {
+        List<double[]> faces = new ArrayList<>();
+        double p = 1.0 / term.sides;
+        for (int first = 1; first <= term.sides; ++first) {
+            if (first > term.reroll) {
+                faces.add(new double[] {first, p});
+            } else {
+                for (int second = 1; second <= term.sides; ++second) {
+                    faces.add(new double[] {second, p * p});
+                }
+            }
+        }
+        if (!term.explode) {
+            return faces;
+        }
+        List<double[]> out = new ArrayList<>();
+        for (double[] face : faces) {
+            double value = face[0], weight = face[1];
+            for (int level = 0; value % term.sides == 0 && level < DEPTH; ++level) {
+                for (int next = 1; next < term.sides; ++next) {
+                    out.add(new double[] {value + next, weight * p});
+                }
+                value += term.sides;
+                weight *= p;
+            }
+            out.add(new double[] {value, weight});
+        }
+        return out;
+    }
+
+    private static void enumerate(List<double[]> die, int[] values, int index, double weight,
+            DiceExpression.Term term, Map<Integer, Double> out) {
+        if (index == values.length) {
+            int[] sorted = values.clone();
+            Arrays.sort(sorted);
+            int sum = 0;
+            for (int i = 0; i < term.keep; ++i) {
+                sum += term.keepHighest ? sorted[sorted.length - 1 - i] : sorted[i];
+            }
+            out.merge(term.negative ? -sum : sum, weight, Double::sum);
+            return;
+        }
+        for (double[] face : die) {
+            values[index] = (int) face[0];
+            enumerate(die, values, index + 1, weight * face[1], term, out);
+        }
+    }
+
+    private static Map<Integer, Double> bruteForce(DiceExpression expression) {
+        Map<Integer, Double> total = new HashMap<>();
+        total.put(expression.getModifier(), 1.0);
+        for (DiceExpression.Term term : expression.getTerms()) {
+            Map<Integer, Double> sums = new HashMap<>();
+            enumerate(outcomes(term), new int[term.count], 0, 1.0, term, sums);
+            Map<Integer, Double> next = new HashMap<>();
+            for (Map.Entry<Integer, Double> a : total.entrySet()) {
+                for (Map.Entry<Integer, Double> b : sums.entrySet()) {
+                    next.merge(a.getKey() + b.getKey(), a.getValue() * b.getValue(), Double::sum);
+                }
+            }
+            total = next;
+        }
+        return total;
+    }
+
+    /**
+     * Compare every value up to a bound, below which the enumeration is
+     * complete.
+     */
+    private void check(String input, int bound) {
+        DiceExpression expression = parser.parse(input);
+        Distribution exact = calculator.distribution(expression);
+        Map<Integer, Double> expected = bruteForce(expression);
+        int min = expected.keySet().stream().min(Integer::compare).get();
+        assertEquals(input + " min", min, exact.getMin());
+        for (int value = min - 1; value <= bound; ++value) {
+            assertEquals(input + " P(" + value + ")", expected.getOrDefault(value, 0.0),
+                    exact.probability(value), EPSILON);
+        }
+    }
+
+    private void check(String input) {
+        DiceExpression expression = parser.parse(input);
+        Distribution exact = calculator.distribution(expression);
+        int max = bruteForce(expression).keySet().stream().max(Integer::compare).get();
+        assertEquals(input + " max", max, exact.getMax());
+        check(input, max + 1);
+    }
+
+    @Test
+    public void plainPools() {
+        check("1d6");
+        check("2d6");
+        check("3d4+2");
+        check("1d6-1d4");
+        check("3");
+    }
+
+    @Test
+    public void keepAndDrop() {
+        check("3d4kh2+1");
+        check("4d3kl2");
+        check("3d4dl1");
+        check("4d6kh3");
+        check("2d20kl1-2d4kh1");
+    }
+
+    @Test
+    public void reroll() {
+        check("1d6r2");
+        check("2d6r1");
+        check("3d4r1kh2");
+    }
+
+    @Test
+    public void explode() {
+        check("1d4!", DEPTH * 4);
+        check("2d3!", DEPTH * 3);
+        check("3d4!kh2", DEPTH * 4);
+        check("2d4r1!", DEPTH * 4);
+    }
+
+    @Test
+    public void cumulative() {
+        Distribution d = calculator.distribution(parser.parse("2d6"));
+        assertEquals(7.0, d.mean(), EPSILON);
+        assertEquals(35.0 / 6, d.variance(), EPSILON);
+        assertEquals(1.0 / 6, d.probability(7), EPSILON);
+        assertEquals(21.0 / 36, d.atMost(7), EPSILON);
+        assertEquals(21.0 / 36, d.atLeast(7), EPSILON);
+        assertEquals(1.0, d.atMost(12), EPSILON);
+        assertEquals(0.0, d.probability(13), EPSILON);
+    }
+
+    @Test
+    public void tooComplex() {
+        assertThrows(IllegalArgumentException.class,
+                () -> calculator.distribution(parser.parse("100d1000")));
+    }
+
+}
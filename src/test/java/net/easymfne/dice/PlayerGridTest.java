@@ -0,0 +1,151 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.junit.Test;
+
+public class PlayerGridTest {
+
+    private final World overworld = world("world"), nether = world("world_nether");
+    private final PlayerGrid grid = new PlayerGrid(null);
+
+    private static <T> T proxy(Class<T> type, String name, Object... answers) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+                (self, method, args) -> {
+                    switch (method.getName()) {
+                        case "hashCode":
+                            return System.identityHashCode(self);
+                        case "equals":
+                            return self == args[0];
+                        case "toString":
+                            return name;
+                        default:
+                            for (int i = 0; i < answers.length; i += 2) {
+                                if (method.getName().equals(answers[i])) {
+                                    Object answer = answers[i + 1];
+                                    return answer instanceof Location ? ((Location) answer).clone() : answer;
+                                }
+                            }
+                            return null;
+                    }
+                }));
+    }
+
+    private static World world(String name) {
+        return proxy(World.class, name, "getName", name, "getUID", UUID.randomUUID());
+    }
+
+    /**
+     * @return An online player standing still at the given block
+     */
+    private static Player player(String name, World world, int x, int y, int z) {
+        return proxy(Player.class, name, "getName", name, "getUniqueId", UUID.randomUUID(),
+                "getWorld", world, "getLocation", new Location(world, x + 0.5, y, z + 0.5), "isOnline", true);
+    }
+
+    private Set<Player> nearby(Player center, int range, boolean crossworld) {
+        Set<Player> out = new HashSet<>();
+        grid.collectNearby(center, range, crossworld, out);
+        return out;
+    }
+
+    private static Set<Player> set(Player... players) {
+        return new HashSet<>(Arrays.asList(players));
+    }
+
+    @Test
+    public void withinRange() {
+        Player center = player("center", overworld, 0, 64, 0);
+        Player near = player("near", overworld, 10, 70, -10);
+        Player edge = player("edge", overworld, 63, 64, 0);
+        Player far = player("far", overworld, 64, 64, 0);
+        Player other = player("other", nether, 5, 64, 0);
+        grid.reset(64, false, Arrays.asList(center, near, edge, far, other));
+        assertTrue(grid.isEnabled());
+        assertEquals(set(center, near, edge), nearby(center, 64, false));
+        assertEquals(set(center, near, edge, other), nearby(center, 64, true));
+        assertEquals(set(center, near), nearby(center, 16, false));
+    }
+
+    @Test
+    public void acrossCellsAndNegativeCoordinates() {
+        Player center = player("center", overworld, -1, 64, -1);
+        Player[] ring = {
+            player("east", overworld, 6, 64, 0), player("west", overworld, -8, 64, 0),
+            player("north", overworld, 0, 64, -8), player("south", overworld, 0, 64, 6),
+        };
+        List<Player> players = Arrays.asList(center, ring[0], ring[1], ring[2], ring[3]);
+        grid.reset(8, false, players);
+        assertEquals(new HashSet<>(players), nearby(center, 8, false));
+    }
+
+    @Test
+    public void followsMoves() {
+        Player center = player("center", overworld, 0, 64, 0);
+        Player walker = player("walker", overworld, 500, 64, 500);
+        grid.reset(32, false, Arrays.asList(center, walker));
+        assertEquals(set(center), nearby(center, 32, false));
+
+        grid.onPlayerMove(new PlayerMoveEvent(walker, new Location(overworld, 500, 64, 500),
+                new Location(overworld, 20, 64, 0)));
+        assertEquals(set(center, walker), nearby(center, 32, false));
+
+        grid.onPlayerMove(new PlayerMoveEvent(walker, new Location(overworld, 20, 64, 0),
+                new Location(nether, 20, 64, 0)));
+        assertEquals(set(center), nearby(center, 32, false));
+        assertEquals(set(center, walker), nearby(center, 32, true));
+    }
+
+    @Test
+    public void wholeWorld() {
+        Player a = player("a", overworld, 0, 64, 0);
+        Player b = player("b", overworld, 100000, 64, -100000);
+        Player c = player("c", nether, 0, 64, 0);
+        grid.reset(-1, false, Arrays.asList(a, b, c));
+        assertTrue(grid.isEnabled());
+        Set<Player> out = new HashSet<>();
+        grid.collectWorld(overworld.getUID(), out);
+        assertEquals(set(a, b), out);
+        out.clear();
+        grid.collectWorld(UUID.randomUUID(), out);
+        assertTrue(out.isEmpty());
+    }
+
+    @Test
+    public void disabledForUnlimitedCrossworld() {
+        Player a = player("a", overworld, 0, 64, 0);
+        grid.reset(-1, true, Arrays.asList(a));
+        assertFalse(grid.isEnabled());
+        Set<Player> out = new HashSet<>();
+        grid.collectWorld(overworld.getUID(), out);
+        assertTrue(out.isEmpty());
+    }
+
+}
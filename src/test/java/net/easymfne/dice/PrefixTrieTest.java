@@ -0,0 +1,67 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class PrefixTrieTest {
+
+    private final PrefixTrie trie = PrefixTrie.build(
+            Arrays.asList("Steve", "stone", "Alex", "STEVE", "", null, "stew"), 10);
+
+    @Test
+    public void completesIgnoringCase() {
+        assertEquals(Arrays.asList("Steve", "stone", "stew"), trie.complete("s"));
+        assertEquals(Arrays.asList("Steve", "stew"), trie.complete("STE"));
+        assertEquals(Arrays.asList("Alex"), trie.complete("alex"));
+    }
+
+    @Test
+    public void emptyPrefixOffersEverything() {
+        assertEquals(Arrays.asList("Steve", "stone", "Alex", "stew"), trie.complete(""));
+    }
+
+    @Test
+    public void noMatch() {
+        assertTrue(trie.complete("x").isEmpty());
+        assertTrue(trie.complete("alexander").isEmpty());
+        assertTrue(PrefixTrie.EMPTY.complete("").isEmpty());
+    }
+
+    @Test
+    public void limitKeepsFirstWords() {
+        PrefixTrie limited = PrefixTrie.build(Arrays.asList("a1", "a2", "a3", "b1"), 2);
+        assertEquals(Arrays.asList("a1", "a2"), limited.complete(""));
+        assertEquals(Arrays.asList("a1", "a2"), limited.complete("a"));
+        assertEquals(Arrays.asList("a3"), limited.complete("a3"));
+        assertEquals(Collections.emptyList(), PrefixTrie.build(Arrays.asList("a"), 0).complete(""));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void sharedAndUnmodifiable() {
+        List<String> words = trie.complete("st");
+        assertSame(words, trie.complete("ST"));
+        words.add("steal");
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.UUID;
+
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+    private final RateLimiter limiter = new RateLimiter();
+
+    @Test
+    public void burst() {
+        RateLimiter.Tier tier = new RateLimiter.Tier("test", null, 3, 60000L);
+        UUID player = UUID.randomUUID();
+        for (int i = 0; i < 3; ++i) {
+            assertEquals("roll " + (i + 1), 0, limiter.tryAcquire(player, tier, 0));
+        }
+        long wait = limiter.tryAcquire(player, tier, 0);
+        assertTrue("wait " + wait, wait > 59000 && wait <= 60000);
+        /* Another key has its own bucket */
+        assertEquals(0, limiter.tryAcquire(12345L, tier, 0));
+    }
+
+    @Test
+    public void refill() throws InterruptedException {
+        RateLimiter.Tier tier = new RateLimiter.Tier("test", null, 1, 100L);
+        assertEquals(0, limiter.tryAcquire("key", tier, 0));
+        assertTrue(limiter.tryAcquire("key", tier, 0) > 0);
+        Thread.sleep(150);
+        assertEquals(0, limiter.tryAcquire("key", tier, 0));
+        assertTrue(limiter.tryAcquire("key", tier, 0) > 0);
+    }
+
+    @Test
+    public void penalty() {
+        RateLimiter.Tier tier = new RateLimiter.Tier("test", null, 1, 1000L);
+        assertEquals(0, limiter.tryAcquire("key", tier, 5000L));
+        long first = limiter.tryAcquire("key", tier, 5000L);
+        long second = limiter.tryAcquire("key", tier, 5000L);
+        assertTrue("first " + first, first > 0 && first <= 1000);
+        assertTrue("second " + second, second > 5000 && second <= 6000);
+    }
+
+    @Test
+    public void unlimited() {
+        RateLimiter.Tier tier = new RateLimiter.Tier("test", null, 1, 0L);
+        for (int i = 0; i < 100; ++i) {
+            assertEquals(0, limiter.tryAcquire("key", tier, 0));
+        }
+        assertEquals(0, limiter.size());
+    }
+
+    @Test
+    public void evictIdle() throws InterruptedException {
+        RateLimiter.Tier fast = new RateLimiter.Tier("fast", null, 1, 50L);
+        RateLimiter.Tier slow = new RateLimiter.Tier("slow", null, 1, 60000L);
+        limiter.tryAcquire("idle", fast, 0);
+        limiter.tryAcquire("busy", slow, 0);
+        assertEquals(2, limiter.size());
+        Thread.sleep(100);
+        limiter.evictIdle();
+        assertEquals(1, limiter.size());
+        assertTrue(limiter.tryAcquire("busy", slow, 0) > 0);
+    }
+
+    @Test
+    public void forgetOnlyWhenIdle() throws InterruptedException {
+        RateLimiter.Tier fast = new RateLimiter.Tier("fast", null, 1, 50L);
+        RateLimiter.Tier slow = new RateLimiter.Tier("slow", null, 1, 60000L);
+        limiter.tryAcquire("busy", slow, 0);
+        limiter.forgetIfIdle("busy");
+        assertTrue(limiter.tryAcquire("busy", slow, 0) > 0);
+        limiter.tryAcquire("idle", fast, 0);
+        Thread.sleep(100);
+        limiter.forgetIfIdle("idle");
+        assertEquals(1, limiter.size());
+    }
+
+}
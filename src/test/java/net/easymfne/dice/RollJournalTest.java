@@ -0,0 +1,119 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RollJournalTest {
+
+    /** Enough rolls to fill more than one 64 KiB segment. */
+    private static final int ROLLS = 3000;
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("dice-journal").toFile();
+    }
+
+    @After
+    public void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void roundTripAcrossSegments() throws IOException {
+        DiceParser parser = new DiceParser(1, 6, 16);
+        DiceExpression expression = parser.parse("3d6+1");
+        Random random = new Random(3);
+        UUID player = UUID.randomUUID();
+        UUID other = UUID.randomUUID();
+        long discord = 123456789012345678L;
+        List<DiceRoll> mine = new ArrayList<>();
+
+        long start = System.currentTimeMillis();
+        RollJournal journal = new RollJournal(directory, 0, Logger.getAnonymousLogger());
+        for (int i = 0; i < ROLLS; ++i) {
+            DiceRoll roll = expression.roll(random);
+            switch (i % 3) {
+                case 0:
+                    journal.append(RollJournal.SOURCE_PLAYER, player, roll);
+                    mine.add(roll);
+                    break;
+                case 1:
+                    journal.append(RollJournal.SOURCE_PLAYER, other, roll);
+                    break;
+                default:
+                    journal.append(discord, roll);
+            }
+        }
+        journal.close();
+        assertEquals(ROLLS, journal.getWrittenCount());
+        assertEquals(0, journal.getDroppedCount());
+
+        File[] segments = RollJournal.listSegments(directory);
+        assertTrue("segments: " + segments.length, segments.length >= 2);
+        final int[] read = {0};
+        for (File segment : segments) {
+            RollJournal.read(segment, record -> read[0]++);
+        }
+        assertEquals(ROLLS, read[0]);
+
+        RollHistory history = new RollHistory(directory, 4);
+        List<RollJournal.Record> records = history.query(player, start, ROLLS);
+        assertEquals(mine.size(), records.size());
+        for (int i = 0; i < records.size(); ++i) {
+            /* Newest first */
+            DiceRoll roll = mine.get(mine.size() - 1 - i);
+            RollJournal.Record record = records.get(i);
+            assertEquals(player, record.getId());
+            assertEquals(RollJournal.SOURCE_PLAYER, record.getSource());
+            assertEquals("3d6+1", record.getExpression());
+            assertEquals(1, record.getModifier());
+            assertEquals(roll.getTotal(), record.getTotal());
+            assertArrayEquals(roll.getRolls(), record.getValues());
+            if (i > 0) {
+                assertTrue(record.getTime() <= records.get(i - 1).getTime());
+            }
+        }
+
+        assertEquals(10, history.query(player, start, 10).size());
+        assertEquals(ROLLS / 3, history.query(new UUID(0, discord), start, ROLLS).size());
+        assertEquals(0, history.query(UUID.randomUUID(), start, ROLLS).size());
+        assertEquals(0, history.query(player, System.currentTimeMillis() + 1000, ROLLS).size());
+    }
+
+}
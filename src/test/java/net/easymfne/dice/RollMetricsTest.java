@@ -0,0 +1,120 @@
+/*
+ * This file is part of the Dice plugin by EasyMFnE.
+ *
+ * Dice is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ *
+ * Dice is distributed in the hope that it will be useful, but without any
+ * warranty; without even the implied warranty of merchantability or fitness for
+ * a particular purpose. See the GNU General Public License for details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along
+ * with Dice. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.dice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RollMetricsTest {
+
+    @Test
+    public void smallValuesAreExact() {
+        RollMetrics.Histogram histogram = new RollMetrics.Histogram();
+        for (int i = 0; i < 16; ++i) {
+            histogram.record(i);
+        }
+        assertEquals(16, histogram.getCount());
+        assertEquals(120, histogram.getSum());
+        assertEquals(15, histogram.getMax());
+        assertEquals(7.5, histogram.getMean(), 0);
+        assertEquals(7, histogram.getQuantile(0.5));
+        assertEquals(0, histogram.getQuantile(0));
+        assertEquals(15, histogram.getQuantile(1));
+    }
+
+    @Test
+    public void relativeError() {
+        for (long value = 16; value > 0 && value < Long.MAX_VALUE / 3; value = value * 3 + 1) {
+            RollMetrics.Histogram histogram = new RollMetrics.Histogram();
+            histogram.record(value);
+            /* A larger value keeps the bucket bound from being capped at the maximum */
+            histogram.record(Long.MAX_VALUE);
+            long bound = histogram.getQuantile(0.5);
+            assertTrue(value + " -> " + bound, bound >= value && bound <= value + value / 16);
+        }
+    }
+
+    @Test
+    public void emptyAndNegative() {
+        RollMetrics.Histogram histogram = new RollMetrics.Histogram();
+        assertEquals(0, histogram.getQuantile(0.99));
+        assertEquals(0, histogram.getMean(), 0);
+        histogram.record(-5);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getSum());
+    }
+
+    @Test
+    public void timeReturnsStageEnd() {
+        RollMetrics metrics = new RollMetrics();
+        long start = System.nanoTime();
+        long end = metrics.time(RollMetrics.Stage.PARSE, start);
+        assertTrue(end >= start);
+        RollMetrics.Histogram parse = metrics.getStage(RollMetrics.Stage.PARSE);
+        assertEquals(1, parse.getCount());
+        assertEquals(end - start, parse.getSum());
+        assertEquals(0, metrics.getStage(RollMetrics.Stage.ROLL).getCount());
+    }
+
+    @Test
+    public void prometheusText() throws IOException {
+        RollMetrics metrics = new RollMetrics();
+        metrics.countRoll(RollMetrics.Source.GAME);
+        metrics.countRoll(RollMetrics.Source.GAME);
+        metrics.countRoll(RollMetrics.Source.DISCORD);
+        metrics.countRejection(RollMetrics.Source.DISCORD);
+        metrics.countError();
+        metrics.time(RollMetrics.Stage.BROADCAST, System.nanoTime());
+        metrics.recordRecipients(12);
+
+        File directory = Files.createTempDirectory("dice-metrics").toFile();
+        File file = new File(directory, "dice.prom");
+        try {
+            metrics.writePrometheus(file, null, null);
+            List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+            assertTrue(lines.contains("# TYPE dice_rolls_total counter"));
+            assertTrue(lines.contains("dice_rolls_total{source=\"game\"} 2"));
+            assertTrue(lines.contains("dice_rolls_total{source=\"discord\"} 1"));
+            assertTrue(lines.contains("dice_rate_limited_total{source=\"game\"} 0"));
+            assertTrue(lines.contains("dice_rate_limited_total{source=\"discord\"} 1"));
+            assertTrue(lines.contains("dice_errors_total 1"));
+            assertTrue(lines.contains("# TYPE dice_stage_seconds summary"));
+            assertTrue(lines.contains("dice_stage_seconds_count{stage=\"broadcast\"} 1"));
+            assertTrue(lines.contains("dice_stage_seconds_count{stage=\"parse\"} 0"));
+            assertTrue(lines.contains("dice_broadcast_recipients{quantile=\"0.5\"} 12"));
+            assertTrue(lines.contains("dice_broadcast_recipients_sum 12"));
+            assertTrue(lines.contains("dice_broadcast_recipients_count 1"));
+            for (String line : lines) {
+                assertTrue(line, line.startsWith("# ") || line.startsWith("dice_"));
+                assertFalse(line, line.startsWith("dice_discord_") || line.startsWith("dice_journal_"));
+            }
+            assertFalse(new File(directory, "dice.prom.tmp").exists());
+        } finally {
+            file.delete();
+            directory.delete();
+        }
+    }
+
+}